@@ -2,13 +2,28 @@ package obro1961.chatpatches;
 
 import net.fabricmc.api.ClientModInitializer;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
+import net.fabricmc.fabric.api.resource.ResourceManagerHelper;
+import net.fabricmc.fabric.api.resource.ResourceReloadListenerKeys;
+import net.fabricmc.fabric.api.resource.SimpleSynchronousResourceReloadListener;
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.hud.ChatHudLine;
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.resource.ResourceType;
+import net.minecraft.util.Identifier;
 import obro1961.chatpatches.accessor.ChatHudAccessor;
 import obro1961.chatpatches.chatlog.ChatLog;
+import obro1961.chatpatches.chatlog.ChatLogBatch;
+import obro1961.chatpatches.chatlog.ChatLogWriter;
 import obro1961.chatpatches.config.Config;
+import obro1961.chatpatches.util.ChatUtils;
 import obro1961.chatpatches.util.Flags;
 import obro1961.chatpatches.util.MiscUtils;
+import obro1961.chatpatches.util.SharedVariables;
+
+import java.util.Collection;
+import java.util.List;
 
 public class ChatPatches implements ClientModInitializer {
 	public static final org.slf4j.Logger LOGGER = org.slf4j.LoggerFactory.getLogger("Chat Patches");
@@ -20,24 +35,47 @@ public class ChatPatches implements ClientModInitializer {
 
 	/**
 	 * <ol>
-	 * 	<li> Registers a callback on {@link ClientLifecycleEvents#CLIENT_STOPPING} for {@link ChatLog#serialize(boolean)} on a normal game exit
-	 * 	<li> Registers a callback on {@link ClientPlayConnectionEvents#JOIN} for loading the {@link ChatLog} and adding boundary lines
+	 * 	<li> Starts the {@link ChatLogWriter} thread that saves the {@link ChatLog} in the background
+	 * 	<li> Registers a callback on {@link ClientLifecycleEvents#CLIENT_STARTED} to start loading the last used {@link ChatLog} partition in the background
+	 * 	<li> Registers a callback on {@link ClientLifecycleEvents#CLIENT_STOPPING} for {@link ChatLogWriter#shutdown(boolean)} on a normal game exit
+	 * 	<li> Registers a callback on {@link ClientTickEvents#END_CLIENT_TICK} to record the messages received during the tick in the {@link ChatLog} with {@link ChatLogBatch#flush()}
+	 * 	<li> Registers a callback on {@link ClientPlayConnectionEvents#DISCONNECT} to record any still unlogged messages, save the {@link ChatLog} and forget cached player UUIDs after leaving a world
+	 * 	<li> Registers a callback on {@link ClientPlayConnectionEvents#JOIN} for loading the current world's {@link ChatLog} partition and adding boundary lines
+	 * 	<li> Registers a resource reload listener that drops the chat's cached wrapped lines (see {@link obro1961.chatpatches.util.MessageList#wrap}) after the fonts are reloaded
 	 * </ol>
 	 */
 	@Override
 	public void onInitializeClient() {
-		ClientLifecycleEvents.CLIENT_STOPPING.register(client -> ChatLog.serialize(false));
+		ChatLogWriter.start();
+		ClientLifecycleEvents.CLIENT_STARTED.register(client -> {
+			if(config.chatLog)
+				ChatLog.preload();
+		});
+		ClientLifecycleEvents.CLIENT_STOPPING.register(client -> {
+			ChatLogBatch.flush();
+			ChatLogWriter.shutdown(false);
+		});
+		ClientTickEvents.END_CLIENT_TICK.register(client -> ChatLogBatch.flush());
+		ClientPlayConnectionEvents.DISCONNECT.register((network, client) -> {
+			ChatLogBatch.flush();
+			ChatLogWriter.requestFlush();
+			ChatUtils.clearUuidCache();
+		});
 		// registers the cached message file importer and boundary sender
 		ClientPlayConnectionEvents.JOIN.register((network, packetSender, client) -> {
 
-			// Loads the chat log if SAVE_CHAT enabled and the ChatLog hasn't been loaded yet
-			if( config.chatLog && !ChatLog.loaded ) {
-				ChatLog.deserialize();
-				ChatLog.restore(client);
+			String current = SharedVariables.currentWorld = MiscUtils.currentWorldName(client);
+
+			// Opens this world's chat log partition if SAVE_CHAT is enabled, and restores it if it's the first one this session
+			if( config.chatLog ) {
+				ChatLogBatch.flush(); // into the last partition
+				boolean restore = !ChatLog.loaded;
+				ChatLog.deserialize(current);
+				if(restore)
+					ChatLog.restore(client);
 			}
 
 			ChatHudAccessor chatHud = ChatHudAccessor.from(client);
-			String current = MiscUtils.currentWorldName(client);
 			// continues if the boundary line is enabled, >0 messages sent, and if the last and current worlds were servers, that they aren't the same
 			if( config.boundary && !chatHud.getMessages().isEmpty() && (!current.startsWith("S_") || !lastWorld.startsWith("S_") || !current.equals(lastWorld)) ) {
 
@@ -54,12 +92,32 @@ public class ChatPatches implements ClientModInitializer {
 			}
 
 			// sets all messages (restored and boundary line) to a addedTime of 0 to prevent instant rendering (#42)
+			// only the lines built so far; any still rebuilding are older than the ones on screen, which is all this is for
 			if(ChatLog.loaded && Flags.INIT.isRaised()) {
-				chatHud.getVisibleMessages().replaceAll(ln -> new ChatHudLine.Visible(0, ln.content(), ln.indicator(), ln.endOfEntry()));
+				chatHud.getMessages().replaceVisibles(chatHud.getVisibleMessages(), ln -> new ChatHudLine.Visible(0, ln.content(), ln.indicator(), ln.endOfEntry()));
 				Flags.INIT.lower();
 			}
 		});
 
+		ResourceManagerHelper.get(ResourceType.CLIENT_RESOURCES).registerReloadListener(new SimpleSynchronousResourceReloadListener() {
+			@Override
+			public Identifier getFabricId() {
+				return new Identifier(MOD_ID, "wrapped_lines");
+			}
+
+			@Override
+			public Collection<Identifier> getFabricDependencies() {
+				return List.of(ResourceReloadListenerKeys.FONTS);
+			}
+
+			@Override
+			public void reload(ResourceManager manager) {
+				MinecraftClient client = MinecraftClient.getInstance();
+				if(client.inGameHud != null)
+					ChatHudAccessor.from(client).getMessages().clearWrapped();
+			}
+		});
+
 		LOGGER.info("[ChatPatches()] Finished setting up!");
 	}
 }
\ No newline at end of file
@@ -3,7 +3,11 @@ package obro1961.chatpatches.accessor;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.hud.ChatHud;
 import net.minecraft.client.gui.hud.ChatHudLine;
+import net.minecraft.client.gui.hud.MessageIndicator;
+import net.minecraft.text.Text;
 import obro1961.chatpatches.mixin.gui.ChatHudMixin;
+import obro1961.chatpatches.util.MessageList;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 
@@ -23,10 +27,17 @@ public interface ChatHudAccessor {
         return from(client.inGameHud.getChatHud());
     }
 
-    /** {@link ChatHud#messages} */
-    List<ChatHudLine> getMessages();
-    /** {@link ChatHud#visibleMessages} */
+    /** {@link ChatHud#messages}, which is replaced with a {@link MessageList} */
+    MessageList getMessages();
+    /**
+     * {@link ChatHud#visibleMessages}. While they're being rebuilt (see {@link ChatHudMixin#rebuildIncrementally}),
+     * only the newest lines are there so far, but always at least the ones on screen.
+     */
     List<ChatHudLine.Visible> getVisibleMessages();
+    /** {@link ChatHud#visibleMessages}, after finishing any rebuild so every line is there */
+    List<ChatHudLine.Visible> getAllVisibleMessages();
+    /** Replaces {@link ChatHud#visibleMessages} with {@code visibles}, stopping any rebuild since its lines would be replaced anyway */
+    void setVisibleMessages(List<ChatHudLine.Visible> visibles);
     /** {@link ChatHud#scrolledLines} */
     int getScrolledLines();
 
@@ -38,4 +49,7 @@ public interface ChatHudAccessor {
     double _toChatLineY(double y);
     /** {@link ChatHud#getLineHeight()} */
     int _getLineHeight();
+
+    /** {@link ChatHudMixin#addMessages(List, int, MessageIndicator, String)} */
+    void addMessages(List<Text> messages, int ticks, @Nullable MessageIndicator indicator, String world);
 }
\ No newline at end of file
@@ -1,207 +1,805 @@
 package obro1961.chatpatches.chatlog;
 
-import com.google.common.collect.Lists;
-import com.google.gson.Gson;
-import com.google.gson.InstanceCreator;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonSerializer;
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.hud.MessageIndicator;
 import net.minecraft.text.Text;
+import net.minecraft.util.Util;
 import obro1961.chatpatches.ChatPatches;
+import obro1961.chatpatches.accessor.ChatHudAccessor;
 import obro1961.chatpatches.config.Config;
 import obro1961.chatpatches.util.Flags;
+import obro1961.chatpatches.util.MiscUtils;
+import obro1961.chatpatches.util.RingList;
 import obro1961.chatpatches.util.SharedVariables;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.MalformedInputException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 import static java.io.File.separator;
 import static obro1961.chatpatches.ChatPatches.config;
 
 /**
- * Represents the chat log file in the run directory located at {@link ChatLog#CHATLOG_PATH}.
+ * Represents the chat log, which is split into one partition per world/server
+ * (see {@link MiscUtils#currentWorldName(MinecraftClient)}) in the run directory
+ * located at {@link ChatLog#CHATLOG_PATH}. Only the partition of the current
+ * world is loaded, and each one holds up to {@link Config#chatMaxMessages}.
+ * <padding><br>A partition's {@code .bin} file is only a checkpoint; all changes
+ * made after it was written are appended to its {@link ChatLogJournal} ({@code .journal})
+ * until they're compacted into a new one. Both are saved in the binary {@link ChatLogCodec}
+ * format; the old JSON chat log at {@link ChatLog#JSON_PATH} is imported automatically into
+ * the first partition that's opened, and every partition can be exported to {@link ChatLog#EXPORT_PATH}.</padding>
  */
 public class ChatLog {
-    public static final String CHATLOG_PATH = SharedVariables.FABRIC_LOADER.getGameDir().toString() + separator + "logs" + separator + "chatlog.json";
-    private static final Path file = Path.of(CHATLOG_PATH);
+    public static final String CHATLOG_PATH = SharedVariables.FABRIC_LOADER.getGameDir().toString() + separator + "logs" + separator + "chatlog";
+    public static final String JSON_PATH = CHATLOG_PATH + ".json";
+    public static final String EXPORT_PATH = CHATLOG_PATH + "-export";
+    private static final Path directory = Path.of(CHATLOG_PATH);
+    private static final Path jsonFile = Path.of(JSON_PATH);
+    private static final Path lastPartitionFile = directory.resolve("last-partition.txt");
+    private static final int MAX_PARTITION_NAME_LENGTH = 64;
+    /** How long {@link #deserialize(String)} waits for the partition being {@link #preload() preloaded} */
+    public static final long PRELOAD_TIMEOUT_MS = 3000;
     private static final Gson json = new com.google.gson.GsonBuilder()
         .registerTypeAdapter(Text.class, (JsonSerializer<Text>) (src, type, context) -> Text.Serializer.toJsonTree(src))
         .registerTypeAdapter(Text.class, (JsonDeserializer<Text>) (json, type, context) -> Text.Serializer.fromJson(json))
         .registerTypeAdapter(Text.class, (InstanceCreator<Text>) type -> Text.empty())
+        .registerTypeAdapter(Data.class, new Data.Adapter())
     .create();
 
+    /** Guards {@link #data} and {@link #journal}, which are modified on the client thread and saved on the {@link ChatLogWriter} thread */
+    private static final Object lock = new Object();
+
     private static boolean savedAfterCrash = false;
+    private static volatile boolean importedJson = false;
+    private static CompletableFuture<Partition> preloading = null;
     private static ChatLog.Data data = new Data();
+    /** The open partition's name, checkpoint, and journal; {@code null} until {@link #loaded} */
+    private static String partition = null;
+    private static Path file = null;
+    private static ChatLogJournal journal = null;
+    private static boolean openImportedJson = false; // if the open partition imported the old JSON chat log
+    /** Partitions that were closed by {@link #deserialize(String)} but not saved yet, oldest first */
+    private static final List<Partition> closing = new ArrayList<>();
 
-    public static boolean loaded = false;
+    public static volatile boolean loaded = false;
 
 
     /** Micro class for serializing, used separately from ChatLog for simplification */
-    private static class Data {
-        public static final String EMPTY_DATA = "{\"history\":[],\"messages\":[]}"; // prevents a few errors if the channel doesn't initialize
-        public static final int DEFAULT_SIZE = 100;
-
-        public List<Text> messages;
-        public List<String> history;
+    private static class Data implements ChatLogCodec.Visitor {
+        /** Received messages, oldest first; the oldest one is evicted once {@link Config#chatMaxMessages} is reached */
+        public RingList<Text> messages;
+        /** Sent messages, oldest first; the oldest one is evicted once {@link Config#chatMaxMessages} is reached */
+        public RingList<String> history;
+        /** Incremented every time a checkpoint is written, used to pair it with its {@link ChatLogJournal} */
+        public int generation;
+        /** Received messages evicted since the last checkpoint, oldest first; moved into the {@link ChatLogArchive} when compacting */
+        public List<Text> evicted = new ArrayList<>();
 
         private Data() {
-            messages = Lists.newArrayListWithExpectedSize(DEFAULT_SIZE);
-            history = Lists.newArrayListWithExpectedSize(DEFAULT_SIZE);
+            messages = new RingList<>(config.chatMaxMessages);
+            history = new RingList<>(config.chatMaxMessages);
+        }
+
+        /** Returns a shallow copy of this object without {@link #evicted}, for saving without holding {@link #lock} */
+        private Data copy() {
+            Data copy = new Data();
+            copy.messages = new RingList<>(messages.capacity(), messages);
+            copy.history = new RingList<>(history.capacity(), history);
+            copy.generation = generation;
+            return copy;
+        }
+
+        /** Returns and clears {@link #evicted}. */
+        private List<Text> takeEvicted() {
+            List<Text> taken = evicted;
+            evicted = new ArrayList<>();
+            return taken;
+        }
+
+        @Override
+        public void message(Text message) {
+            Text removed = messages.addLast(message);
+            if(removed != null)
+                evicted.add(removed);
+        }
+
+        @Override
+        public void history(String message) {
+            history.addLast(message);
+        }
+
+        @Override
+        public void clear(boolean history) {
+            if(history)
+                this.history.clear();
+            else
+                messages.clear();
+        }
+
+        /**
+         * Reads and writes {@link Data} objects as JSON one record at a time, so only
+         * a single message's {@link JsonElement} tree ever exists at once instead
+         * of the entire file as a String and a tree. Uses the registered
+         * {@link Text} adapter of {@link #json} for each message. Only used for
+         * importing the old {@link #JSON_PATH} file and {@link #exportJson() exporting}.
+         */
+        private static class Adapter extends TypeAdapter<Data> {
+            @Override
+            public void write(JsonWriter out, Data data) throws IOException {
+                final TypeAdapter<Text> text = json.getAdapter(Text.class);
+
+                out.beginObject();
+                out.name("generation").value(data.generation);
+
+                out.name("history").beginArray();
+                for(String msg : data.history)
+                    out.value(msg);
+                out.endArray();
+
+                out.name("messages").beginArray();
+                for(Text msg : data.messages)
+                    text.write(out, msg);
+                out.endArray();
+
+                out.endObject();
+            }
+
+            @Override
+            public Data read(JsonReader in) throws IOException {
+                final TypeAdapter<Text> text = json.getAdapter(Text.class);
+                Data data = new Data();
+
+                in.beginObject();
+                while( in.hasNext() ) {
+                    switch( in.nextName() ) {
+                        case "generation" -> data.generation = in.nextInt();
+                        case "history" -> {
+                            in.beginArray();
+                            while( in.hasNext() )
+                                data.history.add( in.nextString() );
+                            in.endArray();
+                        }
+                        case "messages" -> {
+                            in.beginArray();
+                            while( in.hasNext() ) {
+                                Text msg = text.read(in);
+                                if(msg != null)
+                                    data.messages.add(msg);
+                            }
+                            in.endArray();
+                        }
+                        default -> in.skipValue();
+                    }
+                }
+                in.endObject();
+
+                return data;
+            }
         }
     }
 
 
     /**
-     * Deserializes the chat log from {@link #CHATLOG_PATH} and resolves message data from it.
+     * A partition of the chat log, either read from disk by {@link #load(String)} and waiting
+     * to be opened, or closed by {@link #deserialize(String)} and waiting for its last save
+     */
+    private record Partition(String world, Path file, ChatLogJournal journal, Data data, boolean importedJson) {}
+
+
+    /**
+     * Starts loading the partition that was open when the game last closed on a
+     * worker thread, so it's likely ready by the time {@link #deserialize(String)}
+     * is called for it. Does nothing if no partition was ever opened.
+     *
+     * @return a future completing once the partition was loaded, or {@code null} if none is being loaded
+     */
+    public static synchronized CompletableFuture<?> preload() {
+        String world;
+        try {
+            world = Files.exists(lastPartitionFile) ? Files.readString(lastPartitionFile, StandardCharsets.UTF_8).strip() : "";
+        } catch(IOException e) {
+            ChatPatches.LOGGER.warn("[ChatLog.preload] Couldn't read the last chat log partition from '{}':", lastPartitionFile, e);
+            world = "";
+        }
+        if( world.isEmpty() || loaded )
+            return null;
+
+        final String last = world;
+        preloading = CompletableFuture.supplyAsync(() -> load(last), Util.getMainWorkerExecutor());
+        return preloading;
+    }
+
+    /**
+     * Opens the partition of the chat log for {@code world}, a name from
+     * {@link MiscUtils#currentWorldName(MinecraftClient)}. The previously open
+     * partition is closed and unloaded once it's saved, so only one is usually in memory.
+     * Does nothing if that partition is already open.
      *
      * @implNote
      * <ol>
-     *   <li> Checks if the file at {@link #CHATLOG_PATH} exists.
-     *   <li> If it doesn't exist, {@code rawData} just uses {@link Data#EMPTY_DATA}.
-     *   <li> If it does exist, it will convert the ChatLog file to UTF-8 if it isn't already and save it to {@code rawData}.
-     *   <li> If {@code rawData} contains invalid data, resets {@link #data} to a default, empty {@link Data} object.
-     *   <li> Then it uses {@link #json} to convert {@code rawData} into a usable {@link Data} object.
-     *   <li> Runs {@link #enforceSizes()} to ensure that the {@link Data} object doesn't overflow with messages.
-     *   <li> If it successfully resolved, then returns and logs a message.
+     *   <li> If this partition was closed but isn't saved yet, takes it back as it is.
+     *   <li> Otherwise, if {@link #preload()} started loading this partition, waits up to {@link #PRELOAD_TIMEOUT_MS}
+     *   for it to finish. If it's for a different world, failed, or takes too long, loads it with {@link #load(String)} instead.
+     *   <li> Swaps it with the open partition, which is left in {@link #closing} for the {@link ChatLogWriter} thread
+     *   to save one last time, so the client thread never waits for a save (or compaction) in progress.
+     *   <li> Runs {@link #enforceSizes(Data)} to ensure that the {@link Data} object doesn't overflow with messages.
+     *   <li> Logs a message, marks the chat log as loaded, and remembers this partition for the next {@link #preload()}.
      */
-    public static void deserialize() {
-        String rawData = Data.EMPTY_DATA;
+    public static void deserialize(String world) {
+        if(loaded && world.equals(partition))
+            return;
+
+        Partition opened = takeClosing(world);
+        if(opened == null)
+            opened = takePreloaded(world);
+        if(opened == null)
+            opened = load(world);
+
+        boolean closed = loaded;
+        synchronized(lock) {
+            if(closed)
+                closing.add(new Partition(partition, file, journal, data, openImportedJson));
+
+            partition = world;
+            file = opened.file();
+            journal = opened.journal();
+            data = opened.data();
+            openImportedJson = opened.importedJson();
+            importedJson |= openImportedJson;
+
+            enforceSizes(data);
+            loaded = true;
+        }
 
-        if( Files.exists(file) ) {
+        if(closed)
+            ChatLogWriter.requestFlush();
 
+        ChatPatches.LOGGER.info("[ChatLog.deserialize] Read the chat log for '{}' containing {} messages and {} sent messages from '{}'",
+			world, data.messages.size(), data.history.size(),
+            file
+		);
+
+        Util.getIoWorkerExecutor().execute(() -> {
             try {
-                rawData = Files.readString(file);
+                Files.createDirectories(directory);
+                Files.writeString(lastPartitionFile, world, StandardCharsets.UTF_8);
+            } catch(IOException e) {
+                ChatPatches.LOGGER.warn("[ChatLog.deserialize] Couldn't save the last chat log partition to '{}':", lastPartitionFile, e);
+            }
+        });
+    }
+
+    /** Removes and returns the partition for {@code world} if it was closed but not saved yet, otherwise returns {@code null}. */
+    private static Partition takeClosing(String world) {
+        synchronized(lock) {
+            for(int i = 0; i < closing.size(); ++i)
+                if(closing.get(i).world().equals(world))
+                    return closing.remove(i);
+        }
 
-            } catch (MalformedInputException notUTF8) { // thrown if the file is not encoded with UTF-8
-                ChatPatches.LOGGER.warn("[ChatLog.deserialize] ChatLog file encoding was '{}', not UTF-8. Complex text characters may have been replaced with question marks.", Charset.defaultCharset().name());
+        return null;
+    }
 
-                try {
-                    // force-writes the string as UTF-8
-                    Files.writeString(file, new String(Files.readAllBytes(file)), StandardOpenOption.TRUNCATE_EXISTING);
-                    rawData = Files.readString(file);
+    /**
+     * Returns the partition {@link #preload()} loaded if it's for {@code world},
+     * waiting up to {@link #PRELOAD_TIMEOUT_MS} for it, or {@code null} if there
+     * isn't one or it can't be used.
+     */
+    private static Partition takePreloaded(String world) {
+        CompletableFuture<Partition> future = preloading;
+        preloading = null;
+        if(future == null)
+            return null;
 
-                } catch (IOException ioexc) {
-                    ChatPatches.LOGGER.error("[ChatLog.deserialize] Couldn't rewrite the ChatLog at '{}', resetting:", CHATLOG_PATH, ioexc);
+        try {
+            Partition preloaded = future.get(PRELOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if(preloaded.world().equals(world))
+                return preloaded;
+        } catch(TimeoutException e) {
+            ChatPatches.LOGGER.warn("[ChatLog.takePreloaded] The chat log for '{}' took longer than {}ms to load in the background, loading it again", world, PRELOAD_TIMEOUT_MS);
+        } catch(ExecutionException e) {
+            ChatPatches.LOGGER.error("[ChatLog.takePreloaded] The chat log failed to load in the background, loading it again:", e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-                    // final attempt to reset the file
-                    try {
-                        rawData = Data.EMPTY_DATA; // just in case of corruption from previous failures
-                        Files.writeString(file, Data.EMPTY_DATA, StandardOpenOption.TRUNCATE_EXISTING);
-                    } catch (IOException ioerr) {
-                        ChatPatches.LOGGER.error("[ChatLog.deserialize] Couldn't reset the ChatLog at '{}':", CHATLOG_PATH, ioerr);
-                    }
+        return null;
+    }
+
+    /**
+     * Reads the partition for {@code world} from disk without opening it, so it's safe to call from any thread.
+     *
+     * @implNote
+     * <ol>
+     *   <li> Reads the partition's checkpoint into a {@link Data} object using {@link #readCheckpoint(Path, boolean)}.
+     *   <li> Replays any changes recorded in its {@link ChatLogJournal} since that checkpoint was written,
+     *   leaving the journal ready to append new changes.
+     *   <li> If the checkpoint couldn't be read, forces the next save to replace it.
+     */
+    private static Partition load(String world) {
+        Path checkpointFile = partitionFile(world, ".bin");
+        ChatLogJournal partitionJournal = new ChatLogJournal(partitionFile(world, ".journal"));
+        boolean importing = !importedJson && !Files.exists(checkpointFile) && Files.exists(jsonFile);
+
+        Data checkpoint = readCheckpoint(checkpointFile, importing);
+        Data read = checkpoint != null ? checkpoint : new Data();
+
+        replayJournal(partitionJournal, read, true);
+        if(checkpoint == null)
+            partitionJournal.forceCompaction(); // replaces the unreadable checkpoint on the next save
+
+        return new Partition(world, checkpointFile, partitionJournal, read, importing);
+    }
+
+    /** Returns the name of the open partition, or {@code null} if none is open yet. */
+    public static String partition() {
+        return partition;
+    }
+
+    /**
+     * Returns the name of the files belonging to the partition for {@code world}. Characters that
+     * aren't safe in file names are replaced, in which case a hash of the original name is added
+     * so different worlds can't end up sharing a partition.
+     */
+    public static String partitionName(String world) {
+        String name = world.replaceAll("[^\\w.-]", "_");
+        if( !name.equals(world) || name.length() > MAX_PARTITION_NAME_LENGTH )
+            name = name.substring(0, Math.min(name.length(), MAX_PARTITION_NAME_LENGTH)) + "-" + Integer.toHexString(world.hashCode());
+
+        return name;
+    }
+
+    private static Path partitionFile(String world, String extension) {
+        return directory.resolve(partitionName(world) + extension);
+    }
+
+    /**
+     * Reads the partition checkpoint at {@code path}, returning {@code null} if it
+     * couldn't be read.
+     *
+     * @implNote
+     * <ol>
+     *   <li> If the file exists, it's decoded with a {@link ChatLogCodec.Decoder}.
+     *   <li> Otherwise, if {@code importJson} is true and the old JSON chat log exists at {@link #JSON_PATH},
+     *   it's imported with {@link #importJson()}. Since no checkpoint exists yet, the next save will write it
+     *   in the binary format.
+     *   <li> Otherwise returns an empty {@link Data} object.
+     */
+    private static Data readCheckpoint(Path path, boolean importJson) {
+        if( Files.exists(path) ) {
+            try {
+                ByteBuf in = Unpooled.wrappedBuffer(Files.readAllBytes(path));
+                ChatLogCodec.Decoder decoder = new ChatLogCodec.Decoder();
+                Data checkpoint = new Data();
+
+                checkpoint.generation = decoder.readHeader(in);
+                if(checkpoint.generation < 0) {
+                    ChatPatches.LOGGER.error("[ChatLog.readCheckpoint] The ChatLog at '{}' isn't a valid chat log file, loading an empty one", path);
+                    return null;
                 }
 
+                decoder.read(in, checkpoint);
+                return checkpoint;
             } catch (IOException e) {
-                ChatPatches.LOGGER.error("[ChatLog.deserialize] Couldn't access the ChatLog at '{}':", CHATLOG_PATH, e);
-                // rawData is EMPTY DATA
+                ChatPatches.LOGGER.error("[ChatLog.readCheckpoint] Couldn't access the ChatLog at '{}':", path, e);
+                return null;
             }
-        } else {
-            data = new Data();
-            loaded = true;
-            return;
+        } else if( importJson && Files.exists(jsonFile) ) {
+            Data imported = importJson();
+            ChatPatches.LOGGER.info("[ChatLog.readCheckpoint] Imported {} messages and {} sent messages from the old JSON chat log at '{}', it will be converted on the next save",
+                imported.messages.size(), imported.history.size(), JSON_PATH
+            );
+            return imported;
         }
 
+        return new Data();
+    }
 
-        // if the file has invalid data (doesn't start with a '{'), reset it
-        if( rawData.length() < 2 || !rawData.startsWith("{") ) {
-            data = new Data();
-            loaded = true;
+    /**
+     * Imports the old JSON chat log at {@link #JSON_PATH}, returning an empty
+     * {@link Data} object if it couldn't be read.
+     *
+     * @implNote
+     * <ol>
+     *   <li> Streams the file through {@link Data.Adapter}, decoding one message at a time.
+     *   <li> If the file isn't UTF-8, it's converted to UTF-8 and read again.
+     *   <li> If the file contains invalid data, it's ignored and an empty {@link Data} object is returned.
+     */
+    private static Data importJson() {
+        try {
+            return streamJson();
 
-            return;
+        } catch (MalformedInputException notUTF8) { // thrown if the file is not encoded with UTF-8
+            ChatPatches.LOGGER.warn("[ChatLog.importJson] ChatLog file encoding was '{}', not UTF-8. Complex text characters may have been replaced with question marks.", Charset.defaultCharset().name());
+
+            try {
+                // force-writes the string as UTF-8
+                Files.writeString(jsonFile, new String(Files.readAllBytes(jsonFile)), StandardOpenOption.TRUNCATE_EXISTING);
+                return streamJson();
+
+            } catch (IOException | JsonParseException | IllegalStateException ioexc) {
+                ChatPatches.LOGGER.error("[ChatLog.importJson] Couldn't rewrite the ChatLog at '{}', ignoring it:", JSON_PATH, ioexc);
+            }
+
+        } catch (IOException e) {
+            ChatPatches.LOGGER.error("[ChatLog.importJson] Couldn't access the ChatLog at '{}':", JSON_PATH, e);
+
+        } catch (JsonParseException | IllegalStateException e) {
+            ChatPatches.LOGGER.error("[ChatLog.importJson] Tried to read the ChatLog and found an error, loading an empty one: ", e);
         }
 
-        try {
-            data = json.fromJson(rawData, Data.class);
-            enforceSizes();
-        } catch (com.google.gson.JsonSyntaxException e) {
-            ChatPatches.LOGGER.error("[ChatLog.deserialize] Tried to read the ChatLog and found an error, loading an empty one: ", e);
+        return new Data();
+    }
 
-            data = new Data();
-            loaded = true;
-            return;
+    /** Streams the JSON chat log straight into a {@link Data} object, without reading it into a String first. */
+    private static Data streamJson() throws IOException {
+        try(JsonReader reader = new JsonReader( Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8) )) {
+            reader.setLenient(true); // same as Gson#fromJson
+
+            // if the file has invalid data (empty or doesn't start with a '{'), ignore it
+            try {
+                if( reader.peek() != JsonToken.BEGIN_OBJECT )
+                    return new Data();
+            } catch(EOFException empty) {
+                return new Data();
+            }
+
+            Data imported = json.getAdapter(Data.class).read(reader);
+            imported.generation = 0; // generations of the old JSON journal don't apply to the binary one
+            return imported;
+        } catch(JsonIOException e) {
+            // the Text adapter wraps I/O errors (like MalformedInputException), so unwrap them for #importJson
+            if(e.getCause() instanceof IOException io)
+                throw io;
+            throw e;
         }
+    }
 
-        loaded = true;
+    /**
+     * Exports every partition of the chat log into {@link #EXPORT_PATH} as JSON,
+     * one file per partition, in the same format {@link #JSON_PATH} used to be
+     * saved in. The files are written on Minecraft's I/O worker thread, where
+     * every partition besides the open one (and any closed ones that aren't saved yet)
+     * is read from disk without loading it. Archived messages are exported
+     * too, see {@link #exportArchives(Path)}.
+     */
+    public static void exportJson() {
+        final Map<Path, Data> snapshots = new HashMap<>();
+        synchronized(lock) {
+            for(Partition closed : closing)
+                snapshots.put(closed.file(), closed.data().copy());
+            if(loaded)
+                snapshots.put(file, data.copy());
+        }
 
-        ChatPatches.LOGGER.info("[ChatLog.deserialize] Read the chat log containing {} messages and {} sent messages from '{}'",
-			data.messages.size(), data.history.size(),
-            CHATLOG_PATH
-		);
+        Util.getIoWorkerExecutor().execute(() -> {
+            try(Stream<Path> files = Files.exists(directory) ? Files.list(directory) : Stream.empty()) {
+                Path exportDir = Files.createDirectories(Path.of(EXPORT_PATH));
+                int exported = 0;
+
+                List<Path> checkpoints = new ArrayList<>( files.filter(path -> path.toString().endsWith(".bin")).toList() );
+                for(Path unsaved : snapshots.keySet())
+                    if(!checkpoints.contains(unsaved))
+                        checkpoints.add(unsaved); // hasn't been saved yet
+
+                for(Path checkpoint : checkpoints) {
+                    Data export = snapshots.containsKey(checkpoint) ? snapshots.get(checkpoint) : readCheckpoint(checkpoint, false);
+                    if(export == null)
+                        continue;
+                    if( !snapshots.containsKey(checkpoint) )
+                        replayJournal(new ChatLogJournal(checkpoint.resolveSibling(checkpoint.getFileName().toString().replace(".bin", ".journal"))), export, false);
+
+                    Path exportFile = exportDir.resolve(checkpoint.getFileName().toString().replace(".bin", ".json"));
+                    try(JsonWriter writer = new JsonWriter( Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8) )) {
+                        writer.setIndent("  ");
+                        json.getAdapter(Data.class).write(writer, export);
+                        ++exported;
+                    }
+                }
+
+                ChatPatches.LOGGER.info("[ChatLog.exportJson] Exported {} chat log partitions to '{}'", exported, EXPORT_PATH);
+                exportArchives(exportDir);
+            } catch (IOException e) {
+                ChatPatches.LOGGER.error("[ChatLog.exportJson] Couldn't export the chat log to '{}':", EXPORT_PATH, e);
+            }
+        });
+    }
+
+    /**
+     * Exports every {@link ChatLogArchive} segment into {@code exportDir/archive/<partition>/<date>.json},
+     * each one holding its messages in a {@code "messages"} array like the partitions. Segments
+     * are read with a {@link ChatLogSegmentReader} one block at a time, so an archive is
+     * never loaded onto the heap all at once. Segments that can't be read are skipped.
+     */
+    private static void exportArchives(Path exportDir) throws IOException {
+        final TypeAdapter<Text> text = json.getAdapter(Text.class);
+        int exported = 0;
+
+        for(String archived : ChatLogArchive.partitions()) {
+            Path partitionDir = exportDir.resolve("archive").resolve(archived);
+
+            for(Path segment : ChatLogArchive.segments(archived)) {
+                Path exportFile = Files.createDirectories(partitionDir).resolve(segment.getFileName().toString().replace(ChatLogArchive.EXTENSION, ".json"));
+
+                try(ChatLogSegmentReader reader = ChatLogSegmentReader.open(segment); JsonWriter writer = new JsonWriter( Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8) )) {
+                    writer.setIndent("  ");
+                    writer.beginObject().name("messages").beginArray();
+                    for(int start = 0; start < reader.size(); start += ChatLogArchive.BLOCK_SIZE)
+                        for(ChatLogSegmentReader.Entry entry : reader.read(start, start + ChatLogArchive.BLOCK_SIZE))
+                            text.write(writer, entry.text());
+                    writer.endArray().endObject();
+
+                    ++exported;
+                } catch(IOException | RuntimeException e) {
+                    ChatPatches.LOGGER.warn("[ChatLog.exportArchives] Couldn't export the chat log archive segment at '{}', skipping it:", segment, e);
+                }
+            }
+        }
+
+        if(exported > 0)
+            ChatPatches.LOGGER.info("[ChatLog.exportArchives] Exported {} chat log archive segments to '{}'", exported, exportDir.resolve("archive"));
     }
 
-    /** Saves the chat log to {@link #CHATLOG_PATH}. */
-    public static void serialize(boolean crashing) {
-        if(crashing && savedAfterCrash)
+    /**
+     * Saves every partition that was closed since the last save, and then the open one.
+     * Normally this only appends the changes made since the last save to a partition's
+     * {@link ChatLogJournal}, but once enough of them have piled up (or if no checkpoint
+     * exists yet) they're compacted into a new checkpoint instead.
+     *
+     * @implNote Called from the {@link ChatLogWriter} thread, so only the snapshot
+     * of what to write is taken while holding {@link #lock}; the actual I/O happens
+     * without blocking the client thread from adding new messages or switching partitions.
+     * A closed partition is only forgotten once it was saved.
+     */
+    public static synchronized void serialize(boolean crashing) {
+        // if the log was never loaded, saving would overwrite it with just this session's messages
+        if( (crashing && savedAfterCrash) || !loaded )
             return;
 
         try {
-            enforceSizes();
+            List<Partition> closed;
+            Partition open;
+            synchronized(lock) {
+                closed = List.copyOf(closing);
+                open = new Partition(partition, file, journal, data, openImportedJson);
+            }
+
+            for(Partition target : closed) {
+                if(save(target)) {
+                    synchronized(lock) {
+                        closing.removeIf(closedPartition -> closedPartition == target); // unless it was reopened
+                    }
+                }
+            }
+            save(open);
+        } finally {
+            if(crashing)
+                savedAfterCrash = true;
+        }
+    }
+
+    /** Saves {@code target} as described in {@link #serialize(boolean)}, returning {@code false} if it couldn't be saved. */
+    private static boolean save(Partition target) {
+        final Data saving = target.data();
+        final ChatLogJournal saveJournal = target.journal();
+
+        try {
+            Data snapshot = null;
+            ChatLogJournal.Batch records;
+
+            synchronized(lock) {
+                if( saveJournal.needsCompaction() || !Files.exists(target.file()) ) {
+                    enforceSizes(saving);
+                    saving.generation++;
+                    snapshot = saving.copy();
+                    snapshot.evicted = saving.takeEvicted();
+                    saveJournal.begin(saving.generation); // the pending records are already included in the snapshot
+                }
 
-            final String str = json.toJson(data, Data.class);
-            Files.writeString(file, str, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                records = saveJournal.takePending();
+            }
 
-            ChatPatches.LOGGER.info("[ChatLog.serialize] Saved the chat log containing {} messages and {} sent messages to '{}'", data.messages.size(), data.history.size(), CHATLOG_PATH);
+            if(snapshot != null) {
+                compact(target, snapshot);
+            } else if(records != null) {
+                saveJournal.write(records);
+                ChatPatches.LOGGER.info("[ChatLog.save] Appended the latest changes to the chat log journal for '{}'", target.world());
+            }
 
+            return true;
         } catch (IOException e) {
-            ChatPatches.LOGGER.error("[ChatLog.serialize] An I/O error occurred while trying to save the chat log:", e);
+            ChatPatches.LOGGER.error("[ChatLog.save] An I/O error occurred while trying to save the chat log for '{}':", target.world(), e);
 
-        } finally {
-            if(crashing)
-                savedAfterCrash = true;
+            // later records may depend on the ones that were just lost
+            synchronized(lock) {
+                saveJournal.forceCompaction();
+            }
+            return false;
         }
     }
 
+    /**
+     * Folds the journal of {@code target} into a new checkpoint by writing the entire
+     * {@code snapshot} to a temporary file, moving it over its checkpoint file,
+     * and then deleting the journal. The incremented {@link Data#generation} ensures
+     * a crash between the last two steps doesn't replay the old journal twice.
+     * If {@code target} imported the old JSON chat log, it's renamed afterwards so it isn't imported again.
+     * <padding><br>Messages that were evicted since the last checkpoint are archived
+     * first, since this is when they're actually dropped from the file. If the game
+     * crashes before the checkpoint is replaced, they're evicted again when replaying
+     * the journal and may be archived twice, but never lost.</padding>
+     */
+    private static void compact(Partition target, Data snapshot) throws IOException {
+        final Path file = target.file();
+        try {
+            String name = file.getFileName().toString();
+            ChatLogArchive.append(name.substring(0, name.length() - ".bin".length()), snapshot.evicted);
+        } catch(IOException e) {
+            ChatPatches.LOGGER.error("[ChatLog.compact] Couldn't archive {} evicted messages, they'll be lost:", snapshot.evicted.size(), e);
+        }
+
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(directory);
+        try(OutputStream out = new BufferedOutputStream( Files.newOutputStream(temp) )) {
+            ChatLogCodec.Encoder encoder = new ChatLogCodec.Encoder().header(snapshot.generation);
+
+            for(String msg : snapshot.history) {
+                encoder.history(msg);
+                encoder.writeTo(out);
+            }
+            for(Text msg : snapshot.messages) {
+                encoder.message(msg);
+                encoder.writeTo(out);
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        target.journal().delete();
 
-    /** Removes all overflowing data from {@code ChatLog.data} with an index greater than {@link Config#chatMaxMessages}. */
-    private static void enforceSizes() {
-        int oldMessageSize = data.messages.size();
-        if(oldMessageSize > config.chatMaxMessages ) {
-            data.messages = data.messages.subList(0, config.chatMaxMessages + 1);
-            ChatPatches.LOGGER.warn("[ChatLog.enforceSizes] ChatLog was full, trimmed to {} messages (removed {})", config.chatMaxMessages, oldMessageSize - config.chatMaxMessages);
+        // only once the partition that imported it has its data in its own checkpoint
+        if( target.importedJson() && Files.exists(jsonFile) ) {
+            Files.move(jsonFile, jsonFile.resolveSibling(jsonFile.getFileName() + ".old"), StandardCopyOption.REPLACE_EXISTING);
+            ChatPatches.LOGGER.info("[ChatLog.compact] Converted the old JSON chat log to '{}', the original was renamed to '{}.old'", file, JSON_PATH);
         }
 
-        int oldHistorySize = data.history.size();
-        if(oldHistorySize > config.chatMaxMessages ) {
-            data.history = data.history.subList(0, config.chatMaxMessages + 1);
-            ChatPatches.LOGGER.warn("[ChatLog.enforceSizes] ChatLog was full, trimmed to {} sent messages (removed {})", config.chatMaxMessages, oldHistorySize - config.chatMaxMessages);
+        ChatPatches.LOGGER.info("[ChatLog.compact] Saved the chat log containing {} messages and {} sent messages to '{}'", snapshot.messages.size(), snapshot.history.size(), file);
+    }
+
+    /**
+     * Applies every change recorded in {@code from} onto {@code target}.
+     * If {@code resume} is true, new changes will be appended after them.
+     */
+    private static void replayJournal(ChatLogJournal from, Data target, boolean resume) {
+        try {
+            int replayed = from.replay(target.generation, target, resume);
+
+            if(replayed > 0)
+                ChatPatches.LOGGER.info("[ChatLog.replayJournal] Replayed {} changes from the chat log journal at '{}'", replayed, from.path());
+        } catch (IOException e) {
+            ChatPatches.LOGGER.error("[ChatLog.replayJournal] Couldn't read the chat log journal at '{}', ignoring it:", from.path(), e);
         }
     }
 
-    /** Restores the chat log from {@link #data} into Minecraft. */
+
+    /**
+     * Resizes the {@link RingList}s in {@code target} to {@link Config#chatMaxMessages}
+     * if it changed, evicting the oldest messages that no longer fit.
+     */
+    private static void enforceSizes(Data target) {
+        if(target.messages.capacity() != config.chatMaxMessages) {
+            if(target.messages.size() > config.chatMaxMessages)
+                target.evicted.addAll( target.messages.subList(0, target.messages.size() - config.chatMaxMessages) );
+
+            int removed = target.messages.setCapacity(config.chatMaxMessages);
+            if(removed > 0)
+                ChatPatches.LOGGER.warn("[ChatLog.enforceSizes] ChatLog was full, trimmed to {} messages (removed {})", config.chatMaxMessages, removed);
+        }
+
+        if(target.history.capacity() != config.chatMaxMessages) {
+            int removed = target.history.setCapacity(config.chatMaxMessages);
+            if(removed > 0)
+                ChatPatches.LOGGER.warn("[ChatLog.enforceSizes] ChatLog was full, trimmed to {} sent messages (removed {})", config.chatMaxMessages, removed);
+        }
+    }
+
+    /**
+     * Restores the open partition of the chat log from {@link #data} into Minecraft.
+     * All messages are added at once with {@link ChatHudAccessor#addMessages(List, int, MessageIndicator, String)},
+     * so none of them go through the chat's usual message handling. They're all from the world
+     * of the open partition, which their {@link obro1961.chatpatches.util.ChatUtils.LineData} is given.
+     */
     public static void restore(MinecraftClient client) {
         Flags.LOADING_CHATLOG.raise();
 
         if(data.history.size() > 0)
             data.history.forEach(client.inGameHud.getChatHud()::addToMessageHistory);
         if(data.messages.size() > 0)
-            data.messages.forEach(msg -> client.inGameHud.getChatHud().addMessage(
-                msg, null, new MessageIndicator(0x382fb5, null, null, "Restored")
-            ));
+            ChatHudAccessor.from(client).addMessages(
+                data.messages, client.inGameHud.getTicks(), new MessageIndicator(0x382fb5, null, null, "Restored"), partition
+            );
 
         Flags.LOADING_CHATLOG.lower();
-        ChatPatches.LOGGER.info("[ChatLog.restore] Restored {} messages and {} history messages from '{}' into Minecraft!", data.messages.size(), data.history.size(), CHATLOG_PATH);
+        ChatPatches.LOGGER.info("[ChatLog.restore] Restored {} messages and {} history messages from '{}' into Minecraft!", data.messages.size(), data.history.size(), file);
     }
 
 
+    /**
+     * Records {@code msg} in the open partition, evicting the oldest message if {@link Config#chatMaxMessages}
+     * was reached. Like the other methods below, does nothing before a partition is opened.
+     */
     public static void addMessage(Text msg) {
-        if(data.messages.size() < config.chatMaxMessages )
-            data.messages.add(msg);
-        else
-            ChatPatches.LOGGER.warn("[ChatLog.addMessage] ChatLog message capacity has been reached, ignoring message '{}'", msg.getString());
+        if(!loaded)
+            return;
+
+        synchronized(lock) {
+            enforceSizes(data);
+            data.message(msg);
+            journal.message(msg);
+        }
+        ChatLogWriter.markDirty();
     }
+    /** Records every one of {@code msgs} like {@link #addMessage(Text)}, but only takes the lock and marks the log dirty once. */
+    public static void addMessages(List<Text> msgs) {
+        if(!loaded || msgs.isEmpty())
+            return;
+
+        synchronized(lock) {
+            enforceSizes(data);
+            for(Text msg : msgs) {
+                data.message(msg);
+                journal.message(msg);
+            }
+        }
+        ChatLogWriter.markDirty();
+    }
+    /** Records {@code msg}, evicting the oldest sent message if {@link Config#chatMaxMessages} was reached. */
     public static void addHistory(String msg) {
-        if(data.history.size() < config.chatMaxMessages )
-            data.history.add(msg);
-        else
-            ChatPatches.LOGGER.warn("[ChatLog.addMessage] ChatLog history capacity has been reached, ignoring sent message '{}'", msg);
-    }
-    public static void clearMessages() { data.messages.clear(); }
-    public static void clearHistory() { data.history.clear(); }
-}
+        if(!loaded)
+            return;
+
+        synchronized(lock) {
+            enforceSizes(data);
+            data.history.addLast(msg);
+            journal.history(msg);
+        }
+        ChatLogWriter.markDirty();
+    }
+    public static void clearMessages() {
+        if(!loaded)
+            return;
+
+        synchronized(lock) { data.messages.clear(); journal.clear(false); }
+        ChatLogWriter.markDirty();
+    }
+    public static void clearHistory() {
+        if(!loaded)
+            return;
+
+        synchronized(lock) { data.history.clear(); journal.clear(true); }
+        ChatLogWriter.markDirty();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,173 @@
+package obro1961.chatpatches.chatlog;
+
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.text.Text;
+import obro1961.chatpatches.ChatPatches;
+import obro1961.chatpatches.config.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.io.File.separator;
+import static obro1961.chatpatches.ChatPatches.config;
+
+/**
+ * Long-term storage for messages that were evicted from a {@link ChatLog}
+ * partition after it reached {@link Config#chatMaxMessages}. Each partition
+ * has its own folder in {@link #ARCHIVE_PATH}, containing one segment file
+ * per day named {@code yyyy-MM-dd.archive}.
+ * <padding><br>A segment is a {@link ChatLogCodec} header followed by
+ * {@link ChatLogCodec#BLOCK} records, each one holding up to {@link #BLOCK_SIZE}
+ * messages encoded with their own {@link ChatLogCodec.Encoder} and then compressed
+ * with {@link java.util.zip.Deflater}. Since blocks don't depend on each other,
+ * any one of them can be decompressed without reading the rest of the segment.</padding>
+ * <padding><br>Segments are deleted once they're older than {@link Config#chatLogArchiveDays},
+ * or oldest first while all of them together are larger than {@link Config#chatLogArchiveSize}.
+ * Either limit can be {@code 0} to only use the other one, and archiving is off if both are.</padding>
+ */
+public class ChatLogArchive {
+    public static final String ARCHIVE_PATH = ChatLog.CHATLOG_PATH + separator + "archive";
+    public static final String EXTENSION = ".archive";
+    /** The maximum amount of messages in each compressed block */
+    public static final int BLOCK_SIZE = 256;
+
+    private static final Path directory = Path.of(ARCHIVE_PATH);
+
+
+    /** Returns true if archiving is enabled; otherwise evicted messages are discarded. */
+    public static boolean enabled() {
+        return config.chatLogArchiveDays > 0 || config.chatLogArchiveSize > 0;
+    }
+
+    /**
+     * Appends {@code messages}, oldest first, to today's segment of the partition
+     * named {@code partition}, and then applies the retention limits.
+     */
+    public static void append(String partition, List<Text> messages) throws IOException {
+        if( messages.isEmpty() || !enabled() )
+            return;
+
+        Path segment = directory.resolve(partition).resolve(LocalDate.now() + EXTENSION);
+        Files.createDirectories(segment.getParent());
+
+        PacketByteBuf out = new PacketByteBuf(Unpooled.buffer());
+        if( !Files.exists(segment) )
+            out.writeBytes( new ChatLogCodec.Encoder().header(0).take() );
+
+        for(int start = 0; start < messages.size(); start += BLOCK_SIZE)
+            writeBlock(out, messages.subList(start, Math.min(start + BLOCK_SIZE, messages.size())));
+
+        byte[] bytes = new byte[out.readableBytes()];
+        out.readBytes(bytes);
+        Files.write(segment, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        ChatPatches.LOGGER.info("[ChatLogArchive.append] Archived {} messages to '{}'", messages.size(), segment);
+        enforceRetention();
+    }
+
+    /**
+     * Writes a {@link ChatLogCodec#BLOCK} record containing the amount of messages,
+     * the time the first one was received (or {@code 0} if it has no timestamp),
+     * their uncompressed size, and then the compressed messages.
+     */
+    private static void writeBlock(PacketByteBuf out, List<Text> messages) throws IOException {
+        ChatLogCodec.Encoder encoder = new ChatLogCodec.Encoder();
+        messages.forEach(encoder::message);
+        byte[] raw = encoder.take();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+        try(DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+            deflater.write(raw);
+        }
+
+        Long firstTimestamp = ChatLogCodec.timestampOf(messages.get(0));
+        PacketByteBuf payload = new PacketByteBuf(Unpooled.buffer());
+        payload.writeVarInt(messages.size());
+        payload.writeVarLong(firstTimestamp != null ? firstTimestamp : 0);
+        payload.writeVarInt(raw.length);
+        payload.writeBytes(compressed.toByteArray());
+
+        out.writeByte(ChatLogCodec.BLOCK);
+        out.writeVarInt(payload.readableBytes());
+        out.writeBytes(payload);
+    }
+
+    /** Returns the name of every partition with an archive folder, like the ones passed to {@link #append(String, List)}. */
+    public static List<String> partitions() throws IOException {
+        if( !Files.isDirectory(directory) )
+            return List.of();
+
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isDirectory).map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    /**
+     * Returns every archive segment of the partition named {@code partition}, oldest first.
+     * They can be read with a {@link ChatLogSegmentReader}.
+     */
+    public static List<Path> segments(String partition) throws IOException {
+        Path folder = directory.resolve(partition);
+        if( !Files.isDirectory(folder) )
+            return List.of();
+
+        try(Stream<Path> files = Files.list(folder)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(EXTENSION)).sorted().toList();
+        }
+    }
+
+    /**
+     * Deletes every segment older than {@link Config#chatLogArchiveDays} (if it isn't {@code 0}),
+     * and then the oldest remaining ones until all of them fit in {@link Config#chatLogArchiveSize}
+     * megabytes (if it isn't {@code 0}).
+     */
+    public static void enforceRetention() throws IOException {
+        if( !Files.exists(directory) )
+            return;
+
+        LocalDate oldest = config.chatLogArchiveDays > 0 ? LocalDate.now().minusDays(config.chatLogArchiveDays) : LocalDate.MIN;
+        long maxBytes = config.chatLogArchiveSize * 1024L * 1024L;
+
+        List<Segment> segments = new ArrayList<>();
+        try(Stream<Path> files = Files.walk(directory, 2)) {
+            for(Path path : files.filter(p -> p.getFileName().toString().endsWith(EXTENSION)).toList()) {
+                try {
+                    LocalDate date = LocalDate.parse( path.getFileName().toString().replace(EXTENSION, "") );
+                    segments.add(new Segment(path, date, Files.size(path)));
+                } catch(DateTimeParseException e) {
+                    ChatPatches.LOGGER.warn("[ChatLogArchive.enforceRetention] Ignoring an archive segment with an invalid date: '{}'", path);
+                }
+            }
+        }
+        segments.sort(Comparator.comparing(Segment::date));
+
+        long total = segments.stream().mapToLong(Segment::size).sum();
+        int deleted = 0;
+        for(Segment segment : segments) {
+            boolean expired = segment.date().isBefore(oldest);
+            boolean overSize = maxBytes > 0 && total > maxBytes;
+            if( !expired && !overSize )
+                break; // sorted oldest first, so no later segment can be expired either
+
+            Files.deleteIfExists(segment.path());
+            total -= segment.size();
+            ++deleted;
+        }
+
+        if(deleted > 0)
+            ChatPatches.LOGGER.info("[ChatLogArchive.enforceRetention] Deleted {} old chat log archive segments", deleted);
+    }
+
+    private record Segment(Path path, LocalDate date, long size) {}
+}
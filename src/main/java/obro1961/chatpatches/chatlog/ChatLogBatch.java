@@ -0,0 +1,37 @@
+package obro1961.chatpatches.chatlog;
+
+import net.minecraft.text.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batches the {@link ChatLog} appends of the messages added to the chat during a
+ * client tick, so a burst of them (join spam, plugin broadcasts, {@code /help} output)
+ * is recorded with a single {@link ChatLog#addMessages(List)} at the end of the tick,
+ * instead of taking its lock and marking it dirty for every message.
+ * <padding><br>Only the chat log is batched; the messages themselves are still added
+ * to the chat one at a time as soon as they're received. Anything else that changes
+ * the chat log (clearing it, switching partitions or saving before the game closes)
+ * calls {@link #flush()} first, so it never records messages out of order or in the
+ * wrong partition.</padding>
+ * <padding><br>Only used from the client thread.</padding>
+ */
+public class ChatLogBatch {
+    private static final List<Text> logged = new ArrayList<>();
+
+
+    /** Records {@code message} in the {@link ChatLog} with the rest of the tick's messages. */
+    public static void log(Text message) {
+        logged.add(message);
+    }
+
+    /** Records every message logged since the last flush. Called at the end of every client tick. */
+    public static void flush() {
+        if(logged.isEmpty())
+            return;
+
+        ChatLog.addMessages(logged);
+        logged.clear();
+    }
+}
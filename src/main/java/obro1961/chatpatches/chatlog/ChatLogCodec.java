@@ -0,0 +1,465 @@
+package obro1961.chatpatches.chatlog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.text.*;
+import obro1961.chatpatches.ChatPatches;
+import obro1961.chatpatches.util.ChatUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary format the {@link ChatLog} checkpoint and {@link ChatLogJournal} are
+ * written in. Both are a header followed by a stream of length-prefixed records:
+ * <pre>
+ * file   := MAGIC:int32 VERSION:varint record*
+ * record := type:byte length:varint payload[length]
+ * </pre>
+ * Every {@link String} and {@link Style} is only written once per file, in a
+ * {@link #STRING} or {@link #STYLE} record that defines it for all following
+ * records, which then refer to it by a varint id. Since most messages share
+ * the same few styles, hover events and click events, this is much smaller
+ * and faster to read than the full JSON form of every {@link Text}.
+ * <padding><br>Each {@link #MESSAGE} record stores the time it was received
+ * (the insertion of its timestamp sibling, see {@link ChatUtils#TIMESTAMP_INDEX})
+ * as a zigzag-encoded difference from the previous message, and strips it from
+ * the timestamp's style so that style can still be shared. The sender isn't stored
+ * on its own, only in the hover events of the message's styles, so restored lines only
+ * have the sender {@link ChatUtils.LineData#of(Text, String)} can recover from those.</padding>
+ * <padding><br>A record that ends past the end of the file (from a crash mid-write)
+ * ends the stream, while a record that can't be decoded is skipped on its own.</padding>
+ */
+public class ChatLogCodec {
+    public static final int MAGIC = 0x43504C47; // "CPLG"
+    public static final int VERSION = 1;
+
+    // record types
+    public static final byte GENERATION = 1, STRING = 2, STYLE = 3, MESSAGE = 4, HISTORY = 5, CLEAR = 6, BLOCK = 7;
+    // text content types
+    private static final byte EMPTY = 0, LITERAL = 1, TRANSLATABLE = 2, OTHER = 3;
+    // translatable argument types
+    private static final byte TEXT_ARG = 0, STRING_ARG = 1;
+    // message flags
+    private static final byte HAS_TIMESTAMP = 0b1;
+
+
+    /** Receives decoded records in the order they were written; see {@link Decoder#read(ByteBuf, Visitor)}. */
+    public interface Visitor {
+        default void message(Text message) {}
+        default void history(String message) {}
+        default void clear(boolean history) {}
+    }
+
+    /** Receives the position of every message without decoding it; see {@link Decoder#index(ByteBuf, IndexVisitor)}. */
+    public interface IndexVisitor {
+        /**
+         * @param timestamp when the message was received, or {@code 0} if it has no timestamp
+         * @param offset the index of the message's payload in the buffer passed to {@link Decoder#index(ByteBuf, IndexVisitor)}
+         * @param length the length of the payload
+         */
+        void message(long timestamp, int offset, int length);
+    }
+
+
+    /** Returns the time {@code message} was received, or {@code null} if it has no timestamp that can be restored exactly. */
+    static @Nullable Long timestampOf(Text message) {
+        List<Text> siblings = message.getSiblings();
+        if(siblings.size() <= ChatUtils.TIMESTAMP_INDEX)
+            return null;
+
+        String insertion = siblings.get(ChatUtils.TIMESTAMP_INDEX).getStyle().getInsertion();
+        if(insertion == null)
+            return null;
+
+        try {
+            long time = Long.parseLong(insertion);
+            return Long.toString(time).equals(insertion) ? time : null;
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Writes records into an internal buffer, defining new strings and
+     * styles before the first record that uses them. The buffered bytes
+     * are taken with {@link #take()} or {@link #writeTo(OutputStream)}.
+     * Not thread-safe.
+     */
+    public static class Encoder {
+        private final Object2IntOpenHashMap<String> strings = new Object2IntOpenHashMap<>();
+        private final Object2IntOpenHashMap<Style> styles = new Object2IntOpenHashMap<>();
+        private final PacketByteBuf out = new PacketByteBuf(Unpooled.buffer());
+        private final PacketByteBuf payload = new PacketByteBuf(Unpooled.buffer());
+        private long lastTimestamp = 0;
+        // the next ids to define, which can be past the sizes of the maps if a resumed file defined the same string or style twice
+        private int nextStringId = 0, nextStyleId = 1;
+
+        public Encoder() {
+            strings.defaultReturnValue(-1);
+            styles.defaultReturnValue(-1);
+        }
+
+        /** Continues encoding records that follow the ones {@code decoder} read, reusing its strings and styles. */
+        public Encoder(Decoder decoder) {
+            this();
+            for(int i = 0; i < decoder.strings.size(); ++i)
+                strings.putIfAbsent(decoder.strings.get(i), i);
+            for(int i = 1; i < decoder.styles.size(); ++i)
+                styles.putIfAbsent(decoder.style(i), i);
+            nextStringId = decoder.strings.size();
+            nextStyleId = decoder.styles.size();
+            lastTimestamp = decoder.lastTimestamp;
+        }
+
+
+        /** Writes the file header and a {@link #GENERATION} record; only valid at the start of a file. */
+        public Encoder header(int generation) {
+            out.writeInt(MAGIC);
+            out.writeVarInt(VERSION);
+            payload.writeVarInt(generation);
+            record(GENERATION);
+            return this;
+        }
+
+        public void message(Text message) {
+            Long timestamp = timestampOf(message);
+
+            payload.writeByte(timestamp != null ? HAS_TIMESTAMP : 0);
+            if(timestamp != null) {
+                long delta = timestamp - lastTimestamp;
+                payload.writeVarLong( (delta << 1) ^ (delta >> 63) ); // zigzag, so negative deltas stay small
+                lastTimestamp = timestamp;
+            }
+            writeText(message, timestamp != null);
+
+            record(MESSAGE);
+        }
+
+        public void history(String message) {
+            payload.writeVarInt( string(message) );
+            record(HISTORY);
+        }
+
+        /** @param history {@code true} to record clearing the sent message history, {@code false} for the received messages */
+        public void clear(boolean history) {
+            payload.writeBoolean(history);
+            record(CLEAR);
+        }
+
+        public boolean hasPending() {
+            return out.isReadable();
+        }
+
+        /** Returns and clears every byte written since the last call. */
+        public byte[] take() {
+            byte[] bytes = new byte[out.readableBytes()];
+            out.readBytes(bytes);
+            out.clear();
+            return bytes;
+        }
+
+        /** Moves every byte written since the last call into {@code stream}. */
+        public void writeTo(OutputStream stream) throws IOException {
+            out.readBytes(stream, out.readableBytes());
+            out.clear();
+        }
+
+
+        /** Moves the {@link #payload} into {@link #out} as a record of {@code type}. */
+        private void record(byte type) {
+            out.writeByte(type);
+            out.writeVarInt(payload.readableBytes());
+            out.writeBytes(payload);
+            payload.clear();
+        }
+
+        /**
+         * Writes {@code text} and its siblings into the {@link #payload}. If {@code stripTimestamp}
+         * is true, the insertion of the sibling at {@link ChatUtils#TIMESTAMP_INDEX} is left out.
+         */
+        private void writeText(Text text, boolean stripTimestamp) {
+            TextContent content = text.getContent();
+
+            if(content == TextContent.EMPTY) {
+                payload.writeByte(EMPTY);
+            } else if(content instanceof LiteralTextContent literal) {
+                payload.writeByte(LITERAL);
+                payload.writeVarInt( string(literal.string()) );
+            } else if(content instanceof TranslatableTextContent translatable) {
+                payload.writeByte(TRANSLATABLE);
+                payload.writeVarInt( string(translatable.getKey()) );
+                payload.writeVarInt( translatable.getFallback() != null ? string(translatable.getFallback()) + 1 : 0 );
+                payload.writeVarInt( translatable.getArgs().length );
+                for(Object arg : translatable.getArgs()) {
+                    if(arg instanceof Text argText) {
+                        payload.writeByte(TEXT_ARG);
+                        writeText(argText, false);
+                    } else {
+                        payload.writeByte(STRING_ARG);
+                        payload.writeVarInt( string(String.valueOf(arg)) );
+                    }
+                }
+            } else {
+                // uncommon content types (keybinds, scores, selectors, nbt) are stored as JSON
+                payload.writeByte(OTHER);
+                payload.writeVarInt( string(Text.Serializer.toJson(MutableText.of(content))) );
+            }
+
+            payload.writeVarInt( style(text.getStyle()) );
+
+            List<Text> siblings = text.getSiblings();
+            payload.writeVarInt(siblings.size());
+            for(int i = 0; i < siblings.size(); ++i) {
+                Text sibling = siblings.get(i);
+
+                if(stripTimestamp && i == ChatUtils.TIMESTAMP_INDEX)
+                    sibling = sibling.copy().setStyle( sibling.getStyle().withInsertion(null) );
+
+                writeText(sibling, false);
+            }
+        }
+
+        /** Returns the id of {@code string}, defining it first if it's new. */
+        private int string(String string) {
+            int id = strings.getInt(string);
+            if(id == -1) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeVarInt(bytes.length);
+                out.writeBytes(bytes);
+
+                id = nextStringId++;
+                strings.put(string, id);
+            }
+            return id;
+        }
+
+        /** Returns the id of {@code style}, defining it first if it's new. {@link Style#EMPTY} is always {@code 0}. */
+        private int style(Style style) {
+            if(style.isEmpty())
+                return 0;
+
+            int id = styles.getInt(style);
+            if(id == -1) {
+                int json = string( Text.Serializer.toJson(Text.empty().setStyle(style)) );
+                out.writeByte(STYLE);
+                out.writeVarInt(PacketByteBuf.getVarIntLength(json));
+                out.writeVarInt(json);
+
+                id = nextStyleId++;
+                styles.put(style, id);
+            }
+            return id;
+        }
+    }
+
+
+    /**
+     * Reads records written by an {@link Encoder}, keeping track of every string and style defined so far.
+     * Styles are only parsed the first time a message using them is decoded. Not thread-safe.
+     */
+    public static class Decoder {
+        private final List<String> strings = new ArrayList<>();
+        private final List<Style> styles = new ArrayList<>(List.of(Style.EMPTY)); // null until parsed from styleJson
+        private final IntArrayList styleJson = new IntArrayList(IntList.of(-1));
+        private long lastTimestamp = 0;
+        private int end = 0;
+
+
+        /**
+         * Reads and checks the file header, including its {@link #GENERATION} record.
+         * @return the generation, or {@code -1} if {@code in} isn't a supported chat log file
+         */
+        public int readHeader(ByteBuf in) {
+            PacketByteBuf buf = new PacketByteBuf(in);
+            try {
+                if(buf.readInt() != MAGIC)
+                    return -1;
+
+                int version = buf.readVarInt();
+                if(version > VERSION) {
+                    ChatPatches.LOGGER.warn("[ChatLogCodec.readHeader] The chat log was saved by a newer version of Chat Patches (format {}, supported {}), ignoring it", version, VERSION);
+                    return -1;
+                }
+
+                if(buf.readByte() != GENERATION)
+                    return -1;
+                buf.readVarInt(); // record length
+                return buf.readVarInt();
+            } catch(RuntimeException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Reads records from {@code in} until it runs out or a record ends
+         * past its end, passing them to {@code visitor}.
+         *
+         * @return the number of messages, history messages, and clears read
+         */
+        public int read(ByteBuf in, Visitor visitor) {
+            return read(in, visitor, null);
+        }
+
+        /**
+         * Reads records from {@code in} like {@link #read(ByteBuf, Visitor)}, except that
+         * messages aren't decoded; their positions are passed to {@code visitor} instead,
+         * so they can be decoded later with {@link #decodeMessage(ByteBuf, long)}. Strings
+         * and styles are still defined, and history and clear records are ignored.
+         *
+         * @return the number of messages indexed
+         */
+        public int index(ByteBuf in, IndexVisitor visitor) {
+            return read(in, new Visitor() {}, visitor);
+        }
+
+        /**
+         * Decodes a message payload found by {@link #index(ByteBuf, IndexVisitor)} with the
+         * strings and styles this decoder has read, which must include everything before it.
+         */
+        public Text decodeMessage(ByteBuf payload, long timestamp) {
+            PacketByteBuf buf = new PacketByteBuf(payload);
+            String insertion = null;
+            if( (buf.readByte() & HAS_TIMESTAMP) != 0 ) {
+                buf.readVarLong();
+                insertion = String.valueOf(timestamp);
+            }
+
+            return readText(buf, insertion);
+        }
+
+        private int read(ByteBuf in, Visitor visitor, @Nullable IndexVisitor indexer) {
+            PacketByteBuf buf = new PacketByteBuf(in);
+            int read = 0;
+
+            while(buf.isReadable()) {
+                int start = buf.readerIndex();
+                byte type;
+                int length;
+                try {
+                    type = buf.readByte();
+                    length = buf.readVarInt();
+                } catch(RuntimeException torn) {
+                    buf.readerIndex(start);
+                    break;
+                }
+                if(length < 0 || length > buf.readableBytes()) {
+                    buf.readerIndex(start);
+                    break;
+                }
+
+                PacketByteBuf payload = new PacketByteBuf(buf.readSlice(length));
+                try {
+                    switch(type) {
+                        case STRING -> strings.add(payload.toString(StandardCharsets.UTF_8));
+                        case STYLE -> {
+                            styleJson.add(payload.readVarInt());
+                            styles.add(null);
+                        }
+                        case MESSAGE -> {
+                            if(indexer != null)
+                                indexer.message(readTimestamp(payload), buf.readerIndex() - length, length);
+                            else
+                                visitor.message(readMessage(payload));
+                            ++read;
+                        }
+                        case HISTORY -> { visitor.history(strings.get(payload.readVarInt())); ++read; }
+                        case CLEAR -> { visitor.clear(payload.readBoolean()); ++read; }
+                        default -> ChatPatches.LOGGER.warn("[ChatLogCodec.read] Skipping an unknown record type {}", type);
+                    }
+                } catch(RuntimeException e) {
+                    ChatPatches.LOGGER.warn("[ChatLogCodec.read] Skipping a damaged record of type {} at byte {}:", type, start, e);
+
+                    // keeps later ids lined up with what the encoder assigned
+                    if(type == STYLE) {
+                        styleJson.add(-1);
+                        styles.add(Style.EMPTY);
+                    }
+                }
+            }
+
+            end = buf.readerIndex();
+            return read;
+        }
+
+        /** Returns the index in the last buffer passed to {@link #read(ByteBuf, Visitor)} where reading stopped. */
+        public int end() {
+            return end;
+        }
+
+
+        /** Returns the style with {@code id}, parsing it if this is the first time it's used. */
+        private Style style(int id) {
+            Style style = styles.get(id);
+            if(style == null) {
+                MutableText holder = Text.Serializer.fromJson(strings.get(styleJson.getInt(id)));
+                style = holder != null ? holder.getStyle() : Style.EMPTY;
+                styles.set(id, style);
+            }
+            return style;
+        }
+
+        /** Reads the flags and timestamp at the start of a message payload, returning {@code 0} if it has no timestamp. */
+        private long readTimestamp(PacketByteBuf payload) {
+            if( (payload.readByte() & HAS_TIMESTAMP) == 0 )
+                return 0;
+
+            long zigzag = payload.readVarLong();
+            return lastTimestamp += (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private Text readMessage(PacketByteBuf payload) {
+            int start = payload.readerIndex();
+            boolean hasTimestamp = (payload.getByte(start) & HAS_TIMESTAMP) != 0;
+            long timestamp = readTimestamp(payload);
+
+            return readText(payload, hasTimestamp ? String.valueOf(timestamp) : null);
+        }
+
+        /** Reads a text and its siblings, restoring {@code timestampInsertion} onto the sibling at {@link ChatUtils#TIMESTAMP_INDEX}. */
+        private MutableText readText(PacketByteBuf payload, @Nullable String timestampInsertion) {
+            MutableText text = switch(payload.readByte()) {
+                case EMPTY -> Text.empty();
+                case LITERAL -> Text.literal( strings.get(payload.readVarInt()) );
+                case TRANSLATABLE -> {
+                    String key = strings.get(payload.readVarInt());
+                    int fallback = payload.readVarInt();
+                    Object[] args = new Object[payload.readVarInt()];
+                    for(int i = 0; i < args.length; ++i)
+                        args[i] = payload.readByte() == TEXT_ARG ? readText(payload, null) : strings.get(payload.readVarInt());
+
+                    yield fallback == 0 ? Text.translatable(key, args) : Text.translatableWithFallback(key, strings.get(fallback - 1), args);
+                }
+                case OTHER -> {
+                    MutableText parsed = Text.Serializer.fromJson( strings.get(payload.readVarInt()) );
+                    yield parsed != null ? MutableText.of(parsed.getContent()) : Text.empty();
+                }
+                default -> throw new IllegalStateException("Unknown text content type");
+            };
+
+            text.setStyle( style(payload.readVarInt()) );
+
+            int siblings = payload.readVarInt();
+            for(int i = 0; i < siblings; ++i) {
+                MutableText sibling = readText(payload, null);
+
+                if(timestampInsertion != null && i == ChatUtils.TIMESTAMP_INDEX)
+                    sibling.setStyle( sibling.getStyle().withInsertion(timestampInsertion) );
+
+                text.append(sibling);
+            }
+
+            return text;
+        }
+    }
+}
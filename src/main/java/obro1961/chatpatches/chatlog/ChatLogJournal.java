@@ -0,0 +1,173 @@
+package obro1961.chatpatches.chatlog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.text.Text;
+import obro1961.chatpatches.ChatPatches;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only journal of every change made to the {@link ChatLog}
+ * since its last checkpoint was written. Each change is one small
+ * {@link ChatLogCodec} record, so saving only costs as much as the changes
+ * made since the last save, and a crash only loses the records that
+ * weren't flushed yet.
+ * <padding><br>The journal starts with a header containing the
+ * generation of the checkpoint it applies to. If the checkpoint was
+ * rewritten (compacted) but the journal wasn't reset afterwards, the
+ * generations won't match and the stale journal is ignored instead of
+ * duplicating messages.</padding>
+ * <padding><br>Since later records refer to strings and styles defined by
+ * earlier ones, records are encoded as soon as they're appended, and every
+ * batch has to be written in order. If one couldn't be written, the journal
+ * is abandoned by forcing the next save to compact.</padding>
+ * <padding><br>Appending records and taking them for writing is guarded by
+ * the {@link ChatLog}'s lock, while the file I/O methods are only called from
+ * the {@link ChatLogWriter} thread.</padding>
+ */
+public class ChatLogJournal {
+    /** The amount of records after which the journal should be folded into a new checkpoint */
+    public static final int COMPACTION_THRESHOLD = 2048;
+
+    private final Path file;
+    private ChatLogCodec.Encoder encoder = new ChatLogCodec.Encoder();
+    private int generation = 0; // of the checkpoint the pending records apply to
+    private boolean fresh = true; // true if the pending records start a new journal file
+    private int records = 0;
+
+
+    /** A batch of encoded records taken by {@link #takePending()} */
+    public record Batch(byte[] bytes, boolean fresh) {}
+
+
+    public ChatLogJournal(Path file) {
+        this.file = file;
+    }
+
+
+    public void message(Text message) {
+        encoder.message(message);
+        ++records;
+    }
+
+    public void history(String message) {
+        encoder.history(message);
+        ++records;
+    }
+
+    /** @param history {@code true} to record clearing the sent message history, {@code false} for the received messages */
+    public void clear(boolean history) {
+        encoder.clear(history);
+        ++records;
+    }
+
+    public Path path() {
+        return file;
+    }
+
+    /** Returns true if enough records have piled up that rewriting the checkpoint is worth it. */
+    public boolean needsCompaction() {
+        return records >= COMPACTION_THRESHOLD;
+    }
+
+    /** Makes the next save compact, because the journal file is missing records that later ones may depend on. */
+    public void forceCompaction() {
+        records = COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Drops all pending records and starts a new journal for the checkpoint
+     * with {@code checkpointGeneration}; used when the pending records are
+     * already part of that checkpoint.
+     */
+    public void begin(int checkpointGeneration) {
+        encoder = new ChatLogCodec.Encoder();
+        generation = checkpointGeneration;
+        fresh = true;
+        records = 0;
+    }
+
+    /** Returns all records appended since the last call, or {@code null} if there aren't any. */
+    public Batch takePending() {
+        if( !encoder.hasPending() )
+            return null;
+
+        Batch batch;
+        if(fresh) {
+            byte[] header = new ChatLogCodec.Encoder().header(generation).take();
+            byte[] taken = encoder.take();
+            byte[] bytes = new byte[header.length + taken.length];
+            System.arraycopy(header, 0, bytes, 0, header.length);
+            System.arraycopy(taken, 0, bytes, header.length, taken.length);
+
+            batch = new Batch(bytes, true);
+        } else {
+            batch = new Batch(encoder.take(), false);
+        }
+
+        fresh = false;
+        return batch;
+    }
+
+    /** Writes a {@link Batch} from {@link #takePending()}, replacing the journal file if it starts a new one. */
+    public void write(Batch batch) throws IOException {
+        if(batch.fresh()) {
+            Files.createDirectories(file.getParent());
+            Files.write(file, batch.bytes(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } else {
+            Files.write(file, batch.bytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /** Deletes the journal file; called after it was folded into a new checkpoint. */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Replays every record in the journal file through {@code visitor}, if
+     * the journal belongs to the checkpoint with {@code checkpointGeneration}.
+     * A torn record at the end of the file (from a crash mid-write) is skipped.
+     * <padding><br>If {@code resume} is true, new records will be appended
+     * after the replayed ones, or to a new journal if it was stale or torn.
+     * Otherwise the journal is only read.</padding>
+     *
+     * @return the number of records that were replayed
+     */
+    public int replay(int checkpointGeneration, ChatLogCodec.Visitor visitor, boolean resume) throws IOException {
+        if(resume)
+            begin(checkpointGeneration);
+        if( !Files.exists(file) )
+            return 0;
+
+        ByteBuf in = Unpooled.wrappedBuffer(Files.readAllBytes(file));
+        ChatLogCodec.Decoder decoder = new ChatLogCodec.Decoder();
+
+        int journalGeneration = decoder.readHeader(in);
+        if(journalGeneration != checkpointGeneration) {
+            ChatPatches.LOGGER.warn("[ChatLogJournal.replay] Ignoring a stale or unreadable journal (generation {}) for checkpoint generation {}", journalGeneration, checkpointGeneration);
+            return 0;
+        }
+
+        int replayed = decoder.read(in, visitor);
+
+        if(resume) {
+            if(in.isReadable()) {
+                // appending after a torn record would make the new ones unreadable too
+                ChatPatches.LOGGER.warn("[ChatLogJournal.replay] The journal ends with {} unreadable bytes, it will be compacted on the next save", in.readableBytes());
+                forceCompaction();
+            } else {
+                // keeps appending to this journal instead of starting a new one
+                encoder = new ChatLogCodec.Encoder(decoder);
+                fresh = false;
+                records = replayed;
+            }
+        }
+
+        return replayed;
+    }
+}
@@ -0,0 +1,295 @@
+package obro1961.chatpatches.chatlog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.text.Text;
+import obro1961.chatpatches.ChatPatches;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a {@link ChatLogArchive} segment without loading it onto the heap.
+ * The file is memory-mapped, and opening it only walks the headers of its
+ * {@link ChatLogCodec#BLOCK} records to build a sparse index of where each
+ * block starts, which message number it starts with, and when that message
+ * was received. Reading a range of messages then only decompresses the blocks
+ * containing it, and returns {@link Entry Entries} that only decode into a
+ * {@link Text} when {@link Entry#text()} is called.
+ * <padding><br>The reader is a snapshot; blocks appended to the segment after it
+ * was opened aren't visible. A torn block at the end of the file is ignored.
+ * Not thread-safe.</padding>
+ */
+public class ChatLogSegmentReader implements AutoCloseable {
+    /** How many decompressed blocks are kept for reuse */
+    private static final int CACHED_BLOCKS = 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+
+    // the sparse index, one entry per block
+    private final IntArrayList blockFirstMessage = new IntArrayList();
+    private final IntArrayList blockOffset = new IntArrayList(); // of the compressed bytes
+    private final IntArrayList blockLength = new IntArrayList();
+    private final IntArrayList blockRawLength = new IntArrayList();
+    private final LongArrayList blockTimestamp = new LongArrayList(); // never decreases, see buildIndex()
+    private int size = 0;
+
+    private final Map<Integer, Block> cache = new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+
+    /** A single archived message, which is only decoded by {@link #text()}. */
+    public static final class Entry {
+        private final Block block;
+        private final int number, offset, length;
+        private final long timestamp;
+        private Text text = null;
+
+        private Entry(Block block, int number, long timestamp, int offset, int length) {
+            this.block = block;
+            this.number = number;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Returns this message's position in the segment, starting at {@code 0} for the oldest one. */
+        public int number() {
+            return number;
+        }
+
+        /** Returns when this message was received in epoch milliseconds, or {@code 0} if it has no timestamp. */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /** Decodes and returns the message, caching it for later calls. */
+        public Text text() {
+            if(text == null)
+                text = block.decoder.decodeMessage(block.raw.slice(offset, length), timestamp);
+            return text;
+        }
+    }
+
+    /** A decompressed block, with its messages indexed but not decoded. */
+    private static final class Block {
+        private final ByteBuf raw;
+        private final ChatLogCodec.Decoder decoder = new ChatLogCodec.Decoder();
+        private final IntArrayList offsets = new IntArrayList(ChatLogArchive.BLOCK_SIZE);
+        private final IntArrayList lengths = new IntArrayList(ChatLogArchive.BLOCK_SIZE);
+        private final LongArrayList timestamps = new LongArrayList(ChatLogArchive.BLOCK_SIZE);
+
+        private Block(byte[] raw) {
+            this.raw = Unpooled.wrappedBuffer(raw);
+            decoder.index(this.raw.duplicate(), (timestamp, offset, length) -> {
+                timestamps.add(timestamp);
+                offsets.add(offset);
+                lengths.add(length);
+            });
+        }
+    }
+
+
+    private ChatLogSegmentReader(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /** Maps the segment at {@code path} and indexes its blocks. */
+    public static ChatLogSegmentReader open(Path path) throws IOException {
+        ChatLogSegmentReader reader = new ChatLogSegmentReader(path);
+        try {
+            reader.buildIndex();
+        } catch(IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Walks the record headers of the segment, recording each block's position
+     * and first message without touching its compressed contents, so only the
+     * first few bytes of each block are ever paged in.
+     * <padding><br>A block whose first message has no timestamp is written with {@code 0},
+     * so it's indexed with the timestamp of the block before it instead, since it
+     * was archived after that one. This keeps the indexed timestamps in order for {@link #find(long)}.</padding>
+     */
+    private void buildIndex() throws IOException {
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.wrappedBuffer(mapped.duplicate()));
+        if( new ChatLogCodec.Decoder().readHeader(buf) < 0 )
+            throw new IOException("'" + path + "' isn't a chat log archive segment");
+
+        while(buf.isReadable()) {
+            int start = buf.readerIndex();
+            try {
+                byte type = buf.readByte();
+                int length = buf.readVarInt();
+                int end = buf.readerIndex() + length;
+                if(length < 0 || end > buf.writerIndex())
+                    break; // torn
+
+                if(type == ChatLogCodec.BLOCK) {
+                    int count = buf.readVarInt();
+                    long timestamp = buf.readVarLong();
+                    int rawLength = buf.readVarInt();
+
+                    blockFirstMessage.add(size);
+                    if(timestamp == 0 && !blockTimestamp.isEmpty())
+                        timestamp = blockTimestamp.getLong(blockTimestamp.size() - 1);
+                    blockTimestamp.add(timestamp);
+                    blockRawLength.add(rawLength);
+                    blockOffset.add(buf.readerIndex());
+                    blockLength.add(end - buf.readerIndex());
+                    size += count;
+                }
+
+                buf.readerIndex(end);
+            } catch(RuntimeException torn) {
+                buf.readerIndex(start);
+                break;
+            }
+        }
+    }
+
+
+    public Path path() {
+        return path;
+    }
+
+    /** Returns the number of messages in the segment. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of the first message received at or after {@code timestamp},
+     * or {@link #size()} if there are none. Messages without a timestamp are skipped.
+     * Usually only decompresses the block it's in.
+     */
+    public int find(long timestamp) {
+        // the last block starting at or before the timestamp, found with the sparse index
+        int lo = 0, hi = blockTimestamp.size() - 1, blockIndex = 0;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(blockTimestamp.getLong(mid) <= timestamp) {
+                blockIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        for(; blockIndex < blockTimestamp.size(); ++blockIndex) {
+            Block block = block(blockIndex);
+            for(int i = 0; i < block.timestamps.size(); ++i)
+                if(block.timestamps.getLong(i) >= timestamp)
+                    return blockFirstMessage.getInt(blockIndex) + i;
+        }
+        return size;
+    }
+
+    /** Returns the message with {@code number}. */
+    public Entry get(int number) {
+        List<Entry> entries = read(number, number + 1);
+        if(entries.isEmpty())
+            throw new IndexOutOfBoundsException("Message " + number + " out of bounds for length " + size);
+        return entries.get(0);
+    }
+
+    /** Returns the messages numbered from {@code from} (inclusive) to {@code to} (exclusive), oldest first. */
+    public List<Entry> read(int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(size, to);
+        List<Entry> entries = new ArrayList<>(Math.max(0, to - from));
+
+        for(int blockIndex = blockOf(from); from < to && blockIndex < blockFirstMessage.size(); ++blockIndex) {
+            Block block = block(blockIndex);
+            int first = blockFirstMessage.getInt(blockIndex);
+
+            for(int i = from - first; i < block.offsets.size() && from < to; ++i, ++from)
+                entries.add(new Entry(block, from, block.timestamps.getLong(i), block.offsets.getInt(i), block.lengths.getInt(i)));
+
+            from = Math.max(from, first + block.offsets.size()); // skips messages of a damaged block
+        }
+
+        return entries;
+    }
+
+    /** Unmaps the segment as far as Java allows; the mapping itself is released once it's garbage collected. */
+    @Override
+    public void close() throws IOException {
+        cache.clear();
+        channel.close();
+    }
+
+
+    /** Returns the index of the block containing the message with {@code number}. */
+    private int blockOf(int number) {
+        int lo = 0, hi = blockFirstMessage.size() - 1, found = 0;
+        while(lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if(blockFirstMessage.getInt(mid) <= number) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /** Returns the decompressed block at {@code index}, from {@link #cache} if possible. */
+    private Block block(int index) {
+        Block block = cache.get(index);
+        if(block != null)
+            return block;
+
+        ByteBuffer compressed = mapped.slice(blockOffset.getInt(index), blockLength.getInt(index));
+        byte[] raw = new byte[blockRawLength.getInt(index)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+
+            int inflated = 0;
+            while(inflated < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, inflated, raw.length - inflated);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += read;
+            }
+
+            if(inflated != raw.length)
+                throw new DataFormatException("expected " + raw.length + " bytes but got " + inflated);
+        } catch(DataFormatException e) {
+            ChatPatches.LOGGER.warn("[ChatLogSegmentReader.block] Block {} of '{}' is damaged, skipping it:", index, path, e);
+            raw = new byte[0];
+        } finally {
+            inflater.end();
+        }
+
+        block = new Block(raw);
+        cache.put(index, block);
+        return block;
+    }
+}
@@ -0,0 +1,129 @@
+package obro1961.chatpatches.chatlog;
+
+import obro1961.chatpatches.ChatPatches;
+import obro1961.chatpatches.config.Config;
+
+import static obro1961.chatpatches.ChatPatches.config;
+
+/**
+ * A background thread that saves the {@link ChatLog} off of the client thread.
+ * {@link ChatLog} marks it dirty whenever something changes, and it saves
+ * every {@link Config#chatLogSaveInterval} seconds if anything did, so bursts
+ * of messages are coalesced into a single write. It can also be asked to save
+ * right away, like when leaving a world, and when the game closes it does one
+ * last bounded save in place of a synchronous {@link ChatLog#serialize(boolean)}.
+ */
+public class ChatLogWriter {
+    /** How long {@link #shutdown(boolean)} waits for the final save before giving up */
+    public static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    private static final Object lock = new Object();
+    private static Thread thread = null;
+    private static volatile boolean dirty = false;
+    private static boolean flushRequested = false, stopping = false, crashing = false;
+
+
+    /** Starts the writer thread, if it isn't already running. */
+    public static void start() {
+        synchronized(lock) {
+            if(thread != null)
+                return;
+
+            stopping = false;
+            thread = new Thread(ChatLogWriter::run, "Chat Patches log writer");
+            thread.setDaemon(true); // never keeps the game open by itself
+            thread.start();
+        }
+    }
+
+    /** Marks the chat log as having unsaved changes, which will be saved on the next interval. */
+    public static void markDirty() {
+        dirty = true;
+    }
+
+    /** Wakes the writer thread to save any unsaved changes immediately. */
+    public static void requestFlush() {
+        synchronized(lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the writer thread after it saves everything one last time,
+     * waiting at most {@link #SHUTDOWN_TIMEOUT_MS} milliseconds for it.
+     * If the thread isn't running, saves on the calling thread instead.
+     *
+     * @param crash {@code true} if the game is closing because of a crash
+     * @return {@code true} if the final save finished in time
+     */
+    public static boolean shutdown(boolean crash) {
+        Thread writer;
+        synchronized(lock) {
+            writer = thread;
+            stopping = true;
+            crashing = crash;
+            lock.notifyAll();
+        }
+
+        if(writer == null || !writer.isAlive() || writer == Thread.currentThread()) {
+            ChatLog.serialize(crash);
+            return true;
+        }
+
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(writer.isAlive()) {
+            ChatPatches.LOGGER.warn("[ChatLogWriter.shutdown] The chat log took longer than {}ms to save, the latest messages may not have been saved!", SHUTDOWN_TIMEOUT_MS);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * The writer thread's loop. Sleeps until the save interval passes, a flush
+     * is requested, or it's told to stop, and then saves if anything changed.
+     */
+    private static void run() {
+        while(true) {
+            boolean stop, crash;
+
+            synchronized(lock) {
+                try {
+                    // 0 disables periodic saving, so only wait for requests (and so does a negative one from a hand-edited config)
+                    long interval = Math.max(0, config.chatLogSaveInterval * 1000L);
+                    if(!stopping && !flushRequested)
+                        lock.wait(interval);
+                } catch(InterruptedException e) {
+                    stopping = true;
+                }
+
+                stop = stopping;
+                crash = crashing;
+                if( !dirty && !flushRequested && !stop )
+                    continue;
+
+                flushRequested = false;
+            }
+
+            dirty = false;
+            try {
+                ChatLog.serialize(crash);
+            } catch(Exception e) {
+                ChatPatches.LOGGER.error("[ChatLogWriter.run] An unexpected error occurred while saving the chat log:", e);
+            }
+
+            if(stop) {
+                synchronized(lock) {
+                    thread = null;
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package obro1961.chatpatches.config;
+
+import net.minecraft.text.ClickEvent;
+import net.minecraft.text.HoverEvent;
+import net.minecraft.text.MutableText;
+import net.minecraft.text.Style;
+import net.minecraft.text.Text;
+import obro1961.chatpatches.util.TextTemplate;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.function.LongFunction;
+
+import static obro1961.chatpatches.ChatPatches.LOGGER;
+
+/**
+ * Formatting state compiled from the {@link Config}'s string options, so
+ * formatting each message doesn't have to parse them again. The date patterns
+ * are compiled into {@link SimpleDateFormat}s, and every format option into a {@link TextTemplate}.
+ * Recompiled by {@link Config#write()}, which runs whenever the config is loaded
+ * or saved, although templates are only recompiled if their option changed.
+ * <padding><br>The timestamp and its hover style are also cached for the
+ * last second a message was formatted in, so a burst of messages received
+ * within the same second share the same {@link Text} content and {@link Style}
+ * objects instead of formatting them again for every message.</padding>
+ */
+public class CompiledFormats {
+    private static LongFunction<String> timeDate = millis -> "";
+    private static LongFunction<String> hoverDate = millis -> "";
+    private static boolean subSecond = false; // true if either date shows fractions of a second, so can't be cached per second
+    private static TextTemplate timeFormat, hoverFormat, chatNameFormat, counterFormat, boundaryFormat, copyReplyFormat;
+    private static volatile Timestamp timestamp = null;
+
+
+    /** A timestamp rendered for every message received within {@link #second}. */
+    private record Timestamp(long second, Text text, Style hoverStyle) {}
+
+
+    /** Compiles the options of {@code config}, and drops everything cached with the previous ones. */
+    public static void compile(Config config) {
+        timeDate = compileDate(config.timeDate, "timeDate");
+        hoverDate = compileDate(config.hoverDate, "hoverDate");
+        subSecond = hasSubSecondFields(config.timeDate) || hasSubSecondFields(config.hoverDate);
+
+        timeFormat = TextTemplate.recompile(timeFormat, config.timeFormat + " ", true);
+        hoverFormat = TextTemplate.recompile(hoverFormat, config.hoverFormat, true);
+        chatNameFormat = TextTemplate.recompile(chatNameFormat, config.chatNameFormat + " ", true);
+        counterFormat = TextTemplate.recompile(counterFormat, " " + config.counterFormat, true);
+        boundaryFormat = TextTemplate.recompile(boundaryFormat, config.boundaryFormat, true);
+        copyReplyFormat = TextTemplate.recompile(copyReplyFormat, config.copyReplyFormat, false);
+
+        timestamp = null;
+    }
+
+    /** {@link Config#chatNameFormat} followed by a space */
+    public static TextTemplate chatNameFormat() {
+        return chatNameFormat;
+    }
+
+    /** A space followed by {@link Config#counterFormat} */
+    public static TextTemplate counterFormat() {
+        return counterFormat;
+    }
+
+    public static TextTemplate boundaryFormat() {
+        return boundaryFormat;
+    }
+
+    /** {@link Config#copyReplyFormat}, without formatting codes since it's typed into the chat field */
+    public static TextTemplate copyReplyFormat() {
+        return copyReplyFormat;
+    }
+
+    /**
+     * Returns a new timestamp {@link Text} for {@code millis} (see {@link Config#makeTimestamp(Date)}).
+     * Only the Text itself is new, its content and style are shared.
+     */
+    public static MutableText timestamp(Config config, long millis) {
+        return rendered(config, millis).text().copy();
+    }
+
+    /** Returns the hover {@link Style} of a timestamp for {@code millis} (see {@link Config#makeHoverStyle(Date)}). */
+    public static Style hoverStyle(Config config, long millis) {
+        return rendered(config, millis).hoverStyle().withInsertion(String.valueOf(millis));
+    }
+
+
+    private static Timestamp rendered(Config config, long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        Timestamp cached = timestamp;
+        if(cached != null && cached.second() == second && !subSecond)
+            return cached;
+
+        final Style EMPTY = Style.EMPTY.withBold(false).withItalic(false).withUnderline(false).withObfuscated(false).withStrikethrough(false);
+        Text text = timeFormat.text( timeDate.apply(millis) ).fillStyle( Style.EMPTY.withColor(config.timeColor) );
+        MutableText hoverText = hoverFormat.text( hoverDate.apply(millis) ).fillStyle( EMPTY.withColor(config.hoverColor) );
+        Style hoverStyle = EMPTY
+            .withHoverEvent( config.hover ? new HoverEvent(HoverEvent.Action.SHOW_TEXT, hoverText) : null )
+            .withClickEvent( config.hover ? new ClickEvent(ClickEvent.Action.SUGGEST_COMMAND, hoverText.getString()) : null )
+            .withColor(config.timeColor);
+
+        return timestamp = new Timestamp(second, text, hoverStyle);
+    }
+
+    /**
+     * Compiles a date pattern into a {@link SimpleDateFormat} once, instead of for every message.
+     * The options have always been SimpleDateFormat patterns, and some letters mean something else
+     * to a {@link java.time.format.DateTimeFormatter} (like {@code u}, {@code Y} and {@code k}),
+     * so they're never interpreted as one. Synchronized since a SimpleDateFormat isn't thread-safe.
+     */
+    private static LongFunction<String> compileDate(String pattern, String key) {
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            return millis -> {
+                synchronized(format) {
+                    return format.format(new Date(millis));
+                }
+            };
+        } catch(IllegalArgumentException invalid) {
+            LOGGER.warn("[CompiledFormats.compileDate] The {} option '{}' isn't a valid date pattern, using the default instead", key, pattern);
+            return compileDate(Config.getOption(key).def.toString(), key);
+        }
+    }
+
+    /** Returns true if {@code pattern} has any milliseconds outside of quoted text. */
+    private static boolean hasSubSecondFields(String pattern) {
+        boolean quoted = false;
+        for(char c : pattern.toCharArray()) {
+            if(c == '\'')
+                quoted = !quoted;
+            else if(!quoted && c == 'S')
+                return true;
+        }
+        return false;
+    }
+}
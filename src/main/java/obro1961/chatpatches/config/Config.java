@@ -15,7 +15,6 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -25,8 +24,6 @@ import static java.io.File.separator;
 import static obro1961.chatpatches.ChatPatches.LOGGER;
 import static obro1961.chatpatches.ChatPatches.config;
 import static obro1961.chatpatches.util.SharedVariables.FABRIC_LOADER;
-import static obro1961.chatpatches.util.StringTextUtils.fillVars;
-import static obro1961.chatpatches.util.StringTextUtils.toText;
 
 public class Config {
     public static final String CONFIG_PATH = FABRIC_LOADER.getConfigDir().toString() + separator + "chatpatches.json";
@@ -38,7 +35,7 @@ public class Config {
     public boolean counter = true; public String counterFormat = "&8(&7x&r$&8)"; public int counterColor = 0xffff55;
     public boolean counterCompact = false; public int counterCompactDistance = 0;
     public boolean boundary = true; public String boundaryFormat = "&8[&r$&8]"; public int boundaryColor = 0x55ffff;
-    public boolean chatLog = true, chatHidePacket = true; public int chatWidth = 0, chatMaxMessages = 16384; public String chatNameFormat = "<$>";
+    public boolean chatLog = true, chatHidePacket = true; public int chatLogSaveInterval = 30, chatLogArchiveDays = 30, chatLogArchiveSize = 64, chatWidth = 0, chatMaxMessages = 16384; public String chatNameFormat = "<$>";
     public int shiftChat = 10; public boolean messageDrafting = false, searchDrafting = true, hideSearchButton = false, vanillaClearing = false;
     public int copyColor = 0x55ffff; public String copyReplyFormat = "/msg $ ";
 
@@ -93,13 +90,10 @@ public class Config {
      * Creates a timestamp in a Text object using the specified time.
      * Uses the {@link #timeFormat}, {@link #timeDate}, and {@link #timeColor}
      * config options. Note that this still creates a timestamp even if
-     * {@link #time} is false.
+     * {@link #time} is false. Formatted by {@link CompiledFormats}.
      */
     public MutableText makeTimestamp(Date when) {
-        return (
-            toText( fillVars(timeFormat, new SimpleDateFormat(timeDate).format(when)) + " " )
-                .fillStyle( Style.EMPTY.withColor(timeColor) )
-        );
+        return CompiledFormats.timestamp(this, when.getTime());
     }
 
     /**
@@ -107,22 +101,15 @@ public class Config {
      * when hovered over in-game. Uses {@link #hoverFormat}, {@link #hoverDate},
      * and {@link #hoverColor} to format the tooltip text. If {@link #hover} is
      * false, this will return a Style with only {@link #timeColor} used.
+     * Formatted by {@link CompiledFormats}.
      */
     public Style makeHoverStyle(Date when) {
-        final Style EMPTY = Style.EMPTY.withBold(false).withItalic(false).withUnderline(false).withObfuscated(false).withStrikethrough(false);
-        MutableText hoverText = toText( fillVars(hoverFormat, new SimpleDateFormat(hoverDate).format(when)) ).fillStyle( EMPTY.withColor(hoverColor) );
-
-        return EMPTY
-            .withHoverEvent( hover ? new HoverEvent(HoverEvent.Action.SHOW_TEXT, hoverText) : null )
-            .withClickEvent( hover ? new ClickEvent(ClickEvent.Action.SUGGEST_COMMAND, hoverText.getString()) : null )
-            .withInsertion(String.valueOf( when.getTime() ))
-            .withColor(timeColor)
-        ;
+        return CompiledFormats.hoverStyle(this, when.getTime());
     }
 
     public MutableText formatPlayername(GameProfile player) {
         String name = player.getName();
-        return toText( fillVars(chatNameFormat, name) + " " )
+        return CompiledFormats.chatNameFormat().text(name)
             .setStyle( Style.EMPTY
                 .withHoverEvent(
                     new HoverEvent(
@@ -136,14 +123,14 @@ public class Config {
 
     public MutableText makeDupeCounter(int dupes) {
         return
-            toText(" " + fillVars(counterFormat, Integer.toString(dupes)))
+            CompiledFormats.counterFormat().text( Integer.toString(dupes) )
                 .fillStyle( Style.EMPTY.withColor(counterColor) );
     }
 
     public Text makeBoundaryLine(String levelName) {
         // constructs w empty texts to not throw errors when comparing for the dupe counter
         return Text.empty()
-            .append(toText( fillVars(boundaryFormat, levelName) ).fillStyle( Style.EMPTY.withColor(boundaryColor) ))
+            .append(CompiledFormats.boundaryFormat().text(levelName).fillStyle( Style.EMPTY.withColor(boundaryColor) ))
             .append(Text.empty());
     }
 
@@ -171,8 +158,10 @@ public class Config {
             }
     }
 
-    /** Saves the {@code ChatPatches.config} instance to {@link Config#CONFIG_PATH} */
+    /** Saves the {@code ChatPatches.config} instance to {@link Config#CONFIG_PATH}, and recompiles its {@link CompiledFormats} */
     public static void write() {
+        CompiledFormats.compile(config);
+
         try(FileWriter fw = new FileWriter(CONFIG_PATH)) {
 
             new GsonBuilder()
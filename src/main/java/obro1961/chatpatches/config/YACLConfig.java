@@ -10,6 +10,7 @@ import net.minecraft.text.MutableText;
 import net.minecraft.text.Style;
 import net.minecraft.text.Text;
 import obro1961.chatpatches.ChatPatches;
+import obro1961.chatpatches.chatlog.ChatLog;
 import obro1961.chatpatches.util.Flags;
 import obro1961.chatpatches.util.SharedVariables;
 
@@ -63,7 +64,7 @@ public class YACLConfig extends Config {
                     .controller( me -> getController(me, key) )
                     .binding( getBinding(opt) )
                     .flag(
-                        key.matches(".*[Cc]hat.*") // contains "chat" or "Chat" somewhere
+                        key.matches(".*[Cc]hat.*") && !key.startsWith("chatLog") // contains "chat" or "Chat" somewhere, but doesn't just change how the chat log is saved
                             ? new OptionFlag[] { client -> client.inGameHud.getChatHud().reset() }
                             : new OptionFlag[0]
                     )
@@ -82,6 +83,14 @@ public class YACLConfig extends Config {
             }
         });
 
+        chatHudOpts.add(
+            ButtonOption.createBuilder()
+                .name( Text.translatable("text.chatpatches.chatLogExport") )
+                .description( OptionDescription.of(Text.translatable("text.chatpatches.desc.chatLogExport")) )
+                .action((yaclScreen, buttonOption) -> ChatLog.exportJson())
+                .build()
+        );
+
 
         YetAnotherConfigLib.Builder builder = YetAnotherConfigLib.createBuilder()
             .title(Text.translatable("text.chatpatches.title"))
@@ -98,7 +107,7 @@ public class YACLConfig extends Config {
                     category(
                     "help",
                         List.of(
-                            label( Text.translatable("text.chatpatches.help.dateFormat"), "https://docs.oracle.com/javase/7/docs/api/java/text/SimpleDateFormat.html" ),
+                            label( Text.translatable("text.chatpatches.help.dateFormat"), "https://docs.oracle.com/en/java/javase/17/docs/api/java.base/java/text/SimpleDateFormat.html" ),
                             label( Text.translatable("text.chatpatches.help.formatCodes"), "https://minecraft.gamepedia.com/Formatting_codes" ),
                             label( Text.translatable("text.chatpatches.help.faq"), "https://github.com/mrbuilder1961/ChatPatches#faq" ),
                             label( Text.translatable("text.chatpatches.help.regex"), "https://docs.oracle.com/javase/7/docs/api/java/util/regex/Pattern.html"),
@@ -214,6 +223,9 @@ public class YACLConfig extends Config {
                 case "counterCompactDistance" -> 1024;
                 case "chatWidth" -> 630;
                 case "chatMaxMessages" -> Short.MAX_VALUE;
+                case "chatLogSaveInterval" -> 600;
+                case "chatLogArchiveDays" -> 365;
+                case "chatLogArchiveSize" -> 1024;
                 case "shiftChat" -> 100;
                 default -> 100; // fallback as required by the compiler
             };
@@ -224,6 +236,8 @@ public class YACLConfig extends Config {
     private static int getInterval(String key) {
         return switch(key) {
             case "chatMaxMessages" -> 16;
+            case "chatLogSaveInterval" -> 5;
+            case "chatLogArchiveSize" -> 16;
             default -> 1;
         };
     }
@@ -3,7 +3,8 @@ package obro1961.chatpatches.mixin;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.MinecraftClient;
-import obro1961.chatpatches.chatlog.ChatLog;
+import obro1961.chatpatches.chatlog.ChatLogBatch;
+import obro1961.chatpatches.chatlog.ChatLogWriter;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
@@ -32,6 +33,7 @@ public abstract class MinecraftClientMixin {
         )
     })
     private void saveChatlogOnCrash(CallbackInfo ci) {
-        ChatLog.serialize(true);
+        ChatLogBatch.flush();
+        ChatLogWriter.shutdown(true);
     }
 }
@@ -10,12 +10,10 @@ import net.minecraft.network.message.MessageSignatureData;
 import net.minecraft.network.message.MessageType;
 import net.minecraft.network.message.SignedMessage;
 import net.minecraft.text.Text;
-import net.minecraft.text.TextVisitFactory;
 import net.minecraft.util.Util;
 import obro1961.chatpatches.mixin.gui.ChatHudMixin;
 import obro1961.chatpatches.util.ChatUtils;
 import obro1961.chatpatches.util.SharedVariables;
-import org.apache.commons.lang3.StringUtils;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
@@ -55,13 +53,14 @@ public abstract class MessageHandlerMixin {
 
     /**
      * Does the same thing as {@link #cacheChatData} if
-     * the message contains a valid playername.
+     * the message contains a valid playername. Uses
+     * {@link ChatUtils#getVanillaSender(Text)} and {@link ChatUtils#getUuid(MinecraftClient, String)}
+     * since busy servers can send hundreds of game messages a second.
      */
     @Inject(method = "onGameMessage", at = @At("HEAD"))
     private void cacheGameData(Text message, boolean overlay, CallbackInfo ci) {
-        String string = TextVisitFactory.removeFormattingCodes(message);
-        String name = ChatUtils.VANILLA_MESSAGE.matcher(string).matches() ? StringUtils.substringBetween(string, "<", ">") : null;
-        UUID uuid = name == null ? Util.NIL_UUID : client.getSocialInteractionsManager().getUuid(name);
+        String name = ChatUtils.getVanillaSender(message);
+        UUID uuid = name == null ? Util.NIL_UUID : ChatUtils.getUuid(client, name);
 
         SharedVariables.lastMsg = !uuid.equals(Util.NIL_UUID)
             ? new ChatUtils.MessageData(new GameProfile(uuid, name), Instant.now(), true)
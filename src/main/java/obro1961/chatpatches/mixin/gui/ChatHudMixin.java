@@ -2,12 +2,17 @@ package obro1961.chatpatches.mixin.gui;
 
 import com.llamalad7.mixinextras.injector.ModifyExpressionValue;
 import com.llamalad7.mixinextras.injector.ModifyReturnValue;
+import com.llamalad7.mixinextras.injector.wrapoperation.Operation;
+import com.llamalad7.mixinextras.injector.wrapoperation.WrapOperation;
+import com.google.common.collect.Lists;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.font.TextRenderer;
 import net.minecraft.client.gui.hud.ChatHud;
 import net.minecraft.client.gui.hud.ChatHudLine;
 import net.minecraft.client.gui.hud.MessageIndicator;
+import net.minecraft.client.util.ChatMessages;
 import net.minecraft.network.message.MessageSignatureData;
 import net.minecraft.text.*;
 import net.minecraft.util.Util;
@@ -15,24 +20,32 @@ import net.minecraft.util.math.MathHelper;
 import obro1961.chatpatches.ChatPatches;
 import obro1961.chatpatches.accessor.ChatHudAccessor;
 import obro1961.chatpatches.chatlog.ChatLog;
+import obro1961.chatpatches.chatlog.ChatLogBatch;
 import obro1961.chatpatches.config.Config;
 import obro1961.chatpatches.util.ChatUtils;
 import obro1961.chatpatches.util.Flags;
+import obro1961.chatpatches.util.MessageList;
+import obro1961.chatpatches.util.RingList;
+import obro1961.chatpatches.util.SharedVariables;
+import obro1961.chatpatches.util.StringTextUtils;
 import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Mutable;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
 import org.spongepowered.asm.mixin.injection.ModifyVariable;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import static obro1961.chatpatches.ChatPatches.config;
-import static obro1961.chatpatches.util.ChatUtils.OG_MSG_INDEX;
 import static obro1961.chatpatches.util.SharedVariables.lastMsg;
 
 /**
@@ -44,14 +57,19 @@ import static obro1961.chatpatches.util.SharedVariables.lastMsg;
 @Mixin(ChatHud.class)
 public abstract class ChatHudMixin implements ChatHudAccessor {
     @Shadow @Final private MinecraftClient client;
-    @Shadow @Final private List<ChatHudLine> messages;
-    @Shadow @Final private List<ChatHudLine.Visible> visibleMessages;
+    @Shadow @Final @Mutable private List<ChatHudLine> messages;
+    @Shadow @Final @Mutable private List<ChatHudLine.Visible> visibleMessages;
 
     @Shadow private int scrolledLines;
 
+    @Unique private static final long REBUILD_BUDGET_NANOS = 2_000_000L; // 2ms of every frame
+    @Unique private final List<ChatHudLine.Visible> addedVisibles = new ArrayList<>();
+    @Unique private int rebuildIndex = -1; // index of the next message to wrap into visibleMessages, or -1 if not rebuilding
+
 
     // shadowed methods for normal (private-local) use
     @Shadow public abstract double getChatScale();
+    @Shadow public abstract int getWidth();
     // shadowed methods just for the below bridge methods (mainly for ChatScreenMixin)
     @Shadow protected abstract int getMessageLineIndex(double x, double y);
     @Shadow protected abstract double toChatLineX(double x);
@@ -63,8 +81,14 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
     @Shadow protected abstract void addMessage(Text message, @Nullable MessageSignatureData signature, int ticks, @Nullable MessageIndicator indicator, boolean refresh);
 
     // ChatHudAccessor methods used outside this mixin
-    public List<ChatHudLine> getMessages() { return messages; }
+    public MessageList getMessages() { return (MessageList) messages; }
     public List<ChatHudLine.Visible> getVisibleMessages() { return visibleMessages; }
+    public List<ChatHudLine.Visible> getAllVisibleMessages() { finishRebuild(); return visibleMessages; }
+    public void setVisibleMessages(List<ChatHudLine.Visible> visibles) {
+        rebuildIndex = -1;
+        visibleMessages.clear();
+        visibleMessages.addAll(visibles);
+    }
     public int getScrolledLines() { return scrolledLines; }
     // these use underscores to avoid name conflicts with shadowed methods
     // the function of these methods are exactly their shadowed counterparts
@@ -74,21 +98,200 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
     public int _getLineHeight() { return getLineHeight(); }
 
 
+    /**
+     * Adds {@code restored} messages (oldest first) to the chat all at once, ending
+     * up with the same lines as calling {@link #addMessage(Text, MessageSignatureData, int, MessageIndicator, boolean)}
+     * for each one, but without running any injectors or logging them.
+     *
+     * @implNote
+     * <ol>
+     *     <li>Creates a {@link ChatHudLine} for each message, newest first, and inserts them all at the start of
+     *     {@link #messages} in one go instead of shifting the whole list for every message.</li>
+     *     <li>Recovers the {@link ChatUtils.LineData} of each one from its content, received in {@code world},
+     *     and attaches it to its line so it's never parsed again.</li>
+     *     <li>Trims {@link #messages} back down to {@link Config#chatMaxMessages}.</li>
+     *     <li>Rebuilds {@link #visibleMessages} like {@link #rebuildIncrementally(CallbackInfo)}, so only the
+     *     lines that can be shown right away are wrapped now and the rest a bit every frame.</li>
+     * </ol>
+     */
+    public void addMessages(List<Text> restored, int ticks, @Nullable MessageIndicator indicator, String world) {
+        if(restored.isEmpty())
+            return;
+
+        List<ChatHudLine> lines = new ArrayList<>( Math.min(restored.size(), config.chatMaxMessages) );
+        for(int i = restored.size() - 1; i >= 0 && lines.size() < config.chatMaxMessages; --i) {
+            Text message = restored.get(i);
+            ChatHudLine line = new ChatHudLine(ticks, message, null, indicator);
+            lines.add(line);
+            getMessages().setData(line, ChatUtils.LineData.of(message, world));
+        }
+
+        messages.addAll(0, lines);
+        if(messages.size() > config.chatMaxMessages)
+            messages.subList(config.chatMaxMessages, messages.size()).clear();
+
+        visibleMessages.clear();
+        rebuildIndex = 0;
+        rebuildVisibles(scrolledLines + getVisibleLineCount(), 0);
+    }
+
+
+    /**
+     * Replaces the {@link java.util.ArrayList}s vanilla stores {@link #messages} and
+     * {@link #visibleMessages} in with {@link RingList}s. Both are kept newest first,
+     * so every new line is inserted at index {@code 0} and the oldest ones are trimmed
+     * from the end; a RingList does both in O(1) instead of shifting every line, which
+     * adds up with {@link Config#chatMaxMessages} lines instead of 100. {@link #messages}
+     * is also a {@link MessageList} so {@link #addCounter} can look up duplicates.
+     */
+    @Inject(method = "<init>", at = @At("TAIL"))
+    private void useRingLists(MinecraftClient client, CallbackInfo ci) {
+        messages = new MessageList();
+        visibleMessages = new RingList<>();
+    }
+
+    /**
+     * Rebuilds {@link #visibleMessages} a bit at a time instead of all at once, so
+     * changing the chat width or scale (or anything else that calls {@link ChatHud#reset()})
+     * doesn't freeze the game for a moment with a large chat history.
+     *
+     * @implNote
+     * <ol>
+     *     <li>Cancels {@link ChatHud#refresh()}, which would re-add every message oldest
+     *     first, and instead clears {@link #visibleMessages} and starts at the newest message.</li>
+     *     <li>{@link #rebuildVisibles(int, long)} appends the lines of each message to the end
+     *     of {@link #visibleMessages}, so the newest lines (the bottom of the chat) are built first.</li>
+     *     <li>The lines that are on screen are built right away, and the rest for up to
+     *     {@link #REBUILD_BUDGET_NANOS} every frame until {@link Config#chatMaxMessages} lines
+     *     or the oldest message is reached. Scrolling further up builds just enough lines first.</li>
+     *     <li>Adding a message, or anything that needs every line through {@link ChatHudAccessor#getAllVisibleMessages()}
+     *     (like condensing a dupe, which removes a message), finishes the rebuild first, so it always sees the same lines as
+     *     before. Replacing the lines with {@link ChatHudAccessor#setVisibleMessages(List)} (like searching) stops it instead,
+     *     and anything else works with the lines built so far.</li>
+     * </ol>
+     */
+    @Inject(method = "refresh", at = @At("HEAD"), cancellable = true)
+    private void rebuildIncrementally(CallbackInfo ci) {
+        visibleMessages.clear();
+        rebuildIndex = 0;
+        rebuildVisibles(scrolledLines + getVisibleLineCount(), 0);
+
+        ci.cancel();
+    }
+    @Inject(method = "render", at = @At("HEAD"))
+    private void continueRebuild(CallbackInfo ci) {
+        rebuildVisibles(scrolledLines + getVisibleLineCount(), REBUILD_BUDGET_NANOS);
+    }
+    @Inject(method = "scroll", at = @At("HEAD"))
+    private void rebuildScrolledLines(int scroll, CallbackInfo ci) {
+        rebuildVisibles(scrolledLines + scroll + getVisibleLineCount(), 0);
+    }
+
+    /**
+     * Wraps messages into {@link #visibleMessages} until there are at least {@code lines}
+     * of them, and then keeps going for up to {@code budgetNanos}. Does nothing if
+     * {@link #visibleMessages} isn't being rebuilt.
+     */
+    @Unique
+    private void rebuildVisibles(int lines, long budgetNanos) {
+        if(rebuildIndex < 0)
+            return;
+
+        final long start = System.nanoTime();
+        final int maxLines = config.chatMaxMessages;
+        final int chatWidth = MathHelper.floor(this.getWidth() / this.getChatScale());
+
+        while(rebuildIndex < messages.size() && visibleMessages.size() < maxLines && (visibleMessages.size() < lines || System.nanoTime() - start < budgetNanos)) {
+            ChatHudLine line = messages.get(rebuildIndex++);
+            MessageIndicator indicator = line.indicator();
+            int width = chatWidth - (indicator != null && indicator.icon() != null ? indicator.icon().width + 4 + 2 : 0);
+
+            List<OrderedText> wrapped = getMessages().wrap(line.content(), width, () -> ChatMessages.breakRenderedChatMessageLines(line.content(), width, client.textRenderer));
+            int first = visibleMessages.size();
+            // newest first, so the last wrapped line (the end of the entry) goes first
+            for(int j = wrapped.size() - 1; j >= 0 && visibleMessages.size() < maxLines; --j)
+                visibleMessages.add(new ChatHudLine.Visible(line.creationTick(), wrapped.get(j), indicator, j == wrapped.size() - 1));
+
+            getMessages().setVisibles(line, List.copyOf( visibleMessages.subList(first, visibleMessages.size()) ));
+        }
+
+        if(rebuildIndex >= messages.size() || visibleMessages.size() >= maxLines)
+            rebuildIndex = -1;
+    }
+
+    /** Builds every line left to rebuild, see {@link #rebuildIncrementally(CallbackInfo)}. */
+    @Unique
+    private void finishRebuild() {
+        rebuildVisibles(Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * These methods link every {@link ChatHudLine} to the {@link ChatHudLine.Visible}s
+     * it's wrapped into (see {@link MessageList#setVisibles(ChatHudLine, List)}), by
+     * collecting the visible lines added by each
+     * {@link #addMessage(Text, MessageSignatureData, int, MessageIndicator, boolean)} call.
+     * They belong to the new first message, which also gets the {@link ChatUtils.LineData}
+     * staged by {@link #modifyMessage}. Lines re-added while refreshing are linked by
+     * {@link #rebuildVisibles(int, long)} instead.
+     * <padding><br>Also finishes any rebuild of {@link #visibleMessages} before a new
+     * message is added, since it adds and trims lines at either end of it.</padding>
+     */
+    @Inject(method = "addMessage(Lnet/minecraft/text/Text;Lnet/minecraft/network/message/MessageSignatureData;ILnet/minecraft/client/gui/hud/MessageIndicator;Z)V", at = @At("HEAD"))
+    private void resetAddedVisibles(Text message, MessageSignatureData sig, int ticks, MessageIndicator indicator, boolean refresh, CallbackInfo ci) {
+        if(!refresh)
+            finishRebuild();
+        addedVisibles.clear();
+    }
+    @ModifyArg(
+        method = "addMessage(Lnet/minecraft/text/Text;Lnet/minecraft/network/message/MessageSignatureData;ILnet/minecraft/client/gui/hud/MessageIndicator;Z)V",
+        at = @At(value = "INVOKE", target = "Ljava/util/List;add(ILjava/lang/Object;)V", ordinal = 0),
+        index = 1
+    )
+    private Object trackAddedVisible(Object visible) {
+        addedVisibles.add( (ChatHudLine.Visible) visible );
+        return visible;
+    }
+    @Inject(method = "addMessage(Lnet/minecraft/text/Text;Lnet/minecraft/network/message/MessageSignatureData;ILnet/minecraft/client/gui/hud/MessageIndicator;Z)V", at = @At("TAIL"))
+    private void linkAddedVisibles(Text message, MessageSignatureData sig, int ticks, MessageIndicator indicator, boolean refresh, CallbackInfo ci) {
+        if(!refresh && !messages.isEmpty()) {
+            ChatHudLine line = messages.get(0);
+            getMessages().setVisibles(line, Lists.reverse( List.copyOf(addedVisibles) )); // each one was added at index 0
+            getMessages().commitStaged(line);
+        }
+
+        addedVisibles.clear();
+    }
+
+    /** Reuses the lines a message was already wrapped into, see {@link MessageList#wrap(Text, int, java.util.function.Supplier)} */
+    @WrapOperation(
+        method = "addMessage(Lnet/minecraft/text/Text;Lnet/minecraft/network/message/MessageSignatureData;ILnet/minecraft/client/gui/hud/MessageIndicator;Z)V",
+        at = @At(value = "INVOKE", target = "Lnet/minecraft/client/util/ChatMessages;breakRenderedChatMessageLines(Lnet/minecraft/text/StringVisitable;ILnet/minecraft/client/font/TextRenderer;)Ljava/util/List;")
+    )
+    private List<OrderedText> useWrapCache(StringVisitable message, int width, TextRenderer textRenderer, Operation<List<OrderedText>> wrap) {
+        return message instanceof Text text
+            ? getMessages().wrap(text, width, () -> wrap.call(message, width, textRenderer))
+            : wrap.call(message, width, textRenderer);
+    }
+
     /** Prevents the game from actually clearing chat history */
     @Inject(method = "clear", at = @At("HEAD"), cancellable = true)
     private void clear(boolean clearHistory, CallbackInfo ci) {
         if(!config.vanillaClearing) {
             if(!clearHistory) {
                 client.getMessageHandler().processAll();
+                ChatLogBatch.flush();
                 // removalQueue.clear(); // don't feel like using an access widener for whatever this does
+                rebuildIndex = -1;
                 messages.clear();
                 visibleMessages.clear();
-                // empties the message cache (which on save clears chatlog.json)
+                // empties the message cache (which on save clears the chat log)
                 ChatLog.clearMessages();
                 ChatLog.clearHistory();
             }
 
             ci.cancel();
+        } else {
+            rebuildIndex = -1; // vanilla clears both lists
         }
     }
 
@@ -143,6 +346,9 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
      * {@link MutableText#append(Text)}, which deliberately puts message
      * components at specific indices, all of which should be laid out in
      * {@link ChatUtils}.</li>
+     * <li>Also stages the {@link ChatUtils.LineData} of the message in the {@link MessageList},
+     * so the counter, copy menu and search can read it without parsing the message. Then
+     * {@link SharedVariables#lastMsg} is reset, since it only belongs to this message.</li>
      */
     @ModifyVariable(
         method = "addMessage(Lnet/minecraft/text/Text;Lnet/minecraft/network/message/MessageSignatureData;ILnet/minecraft/client/gui/hud/MessageIndicator;Z)V",
@@ -164,7 +370,7 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
             Text.empty().setStyle(style)
                 .append(
                     config.time && !boundary
-                        ? config.makeTimestamp(now).setStyle( config.makeHoverStyle(now).withInsertion(nowTime) )
+                        ? config.makeTimestamp(now).setStyle( config.makeHoverStyle(now) ) // the hover style already has the nowTime insertion
                         : Text.empty().setStyle( Style.EMPTY.withInsertion(nowTime) )
                 )
                 .append(
@@ -185,11 +391,11 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
                                         return text;
                                     } else if(message.getContent() instanceof LiteralTextContent ltc) { // default-style message with name
                                         // assuming the vanilla format '<name> message'
-                                        String[] splitMessage = ltc.string().split(">"); // for now we will always check for a singular bracket, just in case the space is missing
+                                        // for now we will always check for a singular bracket, just in case the space is missing
+                                        String afterName = StringTextUtils.afterFirst(ltc.string(), '>'); // without any preceding whitespace
 
-                                        if(splitMessage.length > 1)
-                                            // removes any preceding whitespace
-                                            return Text.literal( splitMessage[1].replaceAll("^\\s+", "") ).setStyle(style);
+                                        if(afterName != null)
+                                            return Text.literal(afterName).setStyle(style);
                                         else
                                             //return Text.empty().setStyle(style); // use this? idk
                                             return message.copyContentOnly().setStyle(style);
@@ -206,16 +412,17 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
                                     int i = -1; // index of the first '>' in the playername
 
                                     // if the message uses the vanilla style but the main component doesn't have the full playername, then only add (the actual message) after it, (removes duped names)
-                                    if(message.getContent() instanceof LiteralTextContent ltc && !ltc.string().contains(">"))
-                                        i = siblings.stream().filter(sib -> sib.getString().contains(">")).mapToInt(siblings::indexOf).findFirst().orElse(i);
+                                    if(message.getContent() instanceof LiteralTextContent ltc && ltc.string().indexOf('>') == -1)
+                                        for(int k = 0; k < siblings.size() && i == -1; ++k)
+                                            if( StringTextUtils.contains(siblings.get(k), '>') )
+                                                i = k;
 
                                     // if the vanilla-style message is formatted weird, then only add the text *after* the first '>' (end of playername)
                                     if(i > -1) {
                                         Text rightTri = siblings.get(i);
-                                        String rightTriStr = rightTri.getString();
-                                        String restOfStr = rightTriStr.substring( rightTriStr.indexOf(">") + 1 ).replaceAll("^\\s+", "");
+                                        String restOfStr = StringTextUtils.afterFirst(rightTri.getString(), '>');
                                         // updates the sibling text and decrements the index, so it doesn't get skipped
-                                        if(!restOfStr.isEmpty()) {
+                                        if(restOfStr != null && !restOfStr.isEmpty()) {
                                             siblings.set(i, Text.literal(restOfStr).setStyle(rightTri.getStyle()));
                                             --i;
                                         }
@@ -234,7 +441,16 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
                 );
 
 
-        ChatLog.addMessage(modified);
+        getMessages().stage(new ChatUtils.LineData(
+            now.getTime(),
+            lastEmpty || boundary ? ChatUtils.NIL_UUID : lastMsg.sender().getId(),
+            1,
+            SharedVariables.currentWorld
+        ));
+        // only the message that was just received was sent by them, not any client or mod messages added after it
+        SharedVariables.lastMsg = ChatUtils.NIL_MSG_DATA;
+
+        ChatLogBatch.log(modified);
         return modified;
     }
 
@@ -264,8 +480,8 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
      *     <li>IF the counter should use the CompactChat method and the message wasn't already condensed:</li>
      *     <ol>
      *         <li>Calculate the adjusted distance to attempt comparing, depending on the amount of messages already in the chat.</li>
-     *         <li>Filter all the messages within the target range that are case-insensitively equal to the incoming message.</li>
-     *         <li>If a message was the same, call {@link ChatUtils#getCondensedMessage(Text, int)},
+     *         <li>Look up the newest message that's case-insensitively equal to the incoming message in the {@link MessageList} index.</li>
+     *         <li>If there is one within the target range, call {@link ChatUtils#getCondensedMessage(Text, int)},
      *         which ultimately removes that message and its visibles.</li>
      *     </ol>
      *     <li>IF any messages were condensed:</li>
@@ -307,12 +523,12 @@ public abstract class ChatHudMixin implements ChatHudAccessor {
                                 : config.counterCompactDistance
                     ), 0, messages.size());
 
-                    // exclude the first message, already checked above
-                    messages.subList(1, attemptDistance)
-                        .stream()
-                        .filter( hudLine -> hudLine.content().getSiblings().get(OG_MSG_INDEX).getString().equalsIgnoreCase( incoming.getSiblings().get(OG_MSG_INDEX).getString() ) )
-                        .findFirst()
-                        .ifPresent( hudLine -> ChatUtils.getCondensedMessage(incoming, messages.indexOf(hudLine)) );
+                    // finds the newest dupe in O(1), and then only has to locate it within the range
+                    // (the first message is excluded, it was already checked above)
+                    ChatHudLine dupe = ((MessageList) messages).findNewest(incoming);
+                    int dupeIndex = dupe != null ? ((MessageList) messages).indexOf(dupe, attemptDistance) : -1;
+                    if(dupeIndex >= 1)
+                        ChatUtils.getCondensedMessage(incoming, dupeIndex);
                 }
 
                 // if any message was condensed add it
@@ -24,19 +24,22 @@ import net.minecraft.text.HoverEvent;
 import net.minecraft.text.OrderedText;
 import net.minecraft.text.Style;
 import net.minecraft.text.Text;
-import net.minecraft.util.Formatting;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.MathHelper;
 import obro1961.chatpatches.ChatPatches;
 import obro1961.chatpatches.accessor.ChatHudAccessor;
 import obro1961.chatpatches.config.ChatSearchSetting;
+import obro1961.chatpatches.config.CompiledFormats;
 import obro1961.chatpatches.config.Config;
 import obro1961.chatpatches.gui.MenuButtonWidget;
 import obro1961.chatpatches.gui.SearchButtonWidget;
 import obro1961.chatpatches.util.ChatUtils;
+import obro1961.chatpatches.util.MessageList;
 import obro1961.chatpatches.util.RenderUtils;
+import obro1961.chatpatches.util.SearchQuery;
+import obro1961.chatpatches.util.SearchResult;
+import obro1961.chatpatches.util.SearchTask;
 import obro1961.chatpatches.util.StringTextUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.lwjgl.glfw.GLFW;
 import org.spongepowered.asm.mixin.Mixin;
@@ -49,7 +52,6 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import java.util.*;
 import java.util.function.Function;
-import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Stream;
 
@@ -73,6 +75,7 @@ import static obro1961.chatpatches.util.SharedVariables.FABRIC_LOADER;
 public abstract class ChatScreenMixin extends Screen {
 	// search text
 	@Unique private static final String SUGGESTION = Text.translatable("text.chatpatches.search.suggestion").getString();
+	@Unique private static final String SEARCHING = Text.translatable("text.chatpatches.search.searching").getString();
 	@Unique private static final Text SEARCH_TOOLTIP = Text.translatable("text.chatpatches.search.desc");
 	// copy menu text
 	@Unique private static final Text COPY_MENU_STRING = Text.translatable("text.chatpatches.copy.copyString");
@@ -112,6 +115,8 @@ public abstract class ChatScreenMixin extends Screen {
 	@Unique private TexturedButtonWidget searchButton;
 	@Unique private String lastSearch;
 	@Unique private PatternSyntaxException searchError;
+	@Unique private SearchResult searchResult;
+	@Unique private SearchTask searchTask;
 
 	@Shadow	protected TextFieldWidget chatField;
 	@Shadow private String originalChatText;
@@ -174,7 +179,7 @@ public abstract class ChatScreenMixin extends Screen {
 		if(!showCopyMenu) {
 			// hover menu buttons, column two
 			hoverButtons.put(COPY_RAW_STRING, of(1, COPY_RAW_STRING, () -> StringTextUtils.toText( selectedLine.content().getString() ).getString()));
-			hoverButtons.put(COPY_FORMATTED_STRING, of(1, COPY_FORMATTED_STRING, () -> StringTextUtils.reorder( selectedLine.content().asOrderedText(), true )));
+			hoverButtons.put(COPY_FORMATTED_STRING, of(1, COPY_FORMATTED_STRING, () -> ChatHudAccessor.from(client).getMessages().stringOf(selectedLine, true)));
 			hoverButtons.put(COPY_JSON_STRING, of(1, COPY_JSON_STRING, () -> Text.Serializer.toJson(selectedLine.content())));
 			hoverButtons.put(COPY_LINK_N.apply(0), of(1, COPY_LINK_N.apply(0), () -> ""));
 			hoverButtons.put(COPY_TIMESTAMP_TEXT, of(1, COPY_TIMESTAMP_TEXT, () -> selectedLine.content().getSiblings().get(ChatUtils.TIMESTAMP_INDEX).getString()));
@@ -192,6 +197,10 @@ public abstract class ChatScreenMixin extends Screen {
 				return player != null ? player.name.getString() : text.getString();
 			}));
 			hoverButtons.put(COPY_UUID, of(1, COPY_UUID, () -> {
+				UUID sender = ChatHudAccessor.from(client).getMessages().dataOf(selectedLine).sender();
+				if( !sender.equals(ChatUtils.NIL_UUID) )
+					return sender.toString();
+
 				Text message = selectedLine.content().getSiblings().get(ChatUtils.OG_MSG_INDEX);
 				Text text = message.getSiblings().size() > ChatUtils.MSG_NAME_INDEX ? message.getSiblings().get(ChatUtils.MSG_NAME_INDEX) : Text.empty();
 				HoverEvent.EntityContent player = text.getStyle().getHoverEvent() != null ? text.getStyle().getHoverEvent().getValue(SHOW_ENTITY) : null;
@@ -203,13 +212,12 @@ public abstract class ChatScreenMixin extends Screen {
 			mainButtons.put(COPY_MENU_LINKS, of(0, COPY_MENU_LINKS, hoverButtons.get(COPY_LINK_N.apply(0))));
 			mainButtons.put(COPY_MENU_TIMESTAMP, of(0, COPY_MENU_TIMESTAMP, hoverButtons.get(COPY_TIMESTAMP_TEXT), hoverButtons.get(COPY_TIMESTAMP_HOVER_TEXT)));
 			mainButtons.put(COPY_UNIX, of(0, COPY_UNIX, () -> {
-				List<Text> siblings = selectedLine.content().getSiblings();
-				String time = siblings.size() > ChatUtils.TIMESTAMP_INDEX ? siblings.get(ChatUtils.TIMESTAMP_INDEX).getStyle().getInsertion() : null;
-				return time != null && !time.isEmpty() ? time : "?";
+				long time = ChatHudAccessor.from(client).getMessages().dataOf(selectedLine).timestamp();
+				return time != 0 ? String.valueOf(time) : "?";
 			}));
 			mainButtons.put(COPY_MENU_SENDER, of(0, COPY_MENU_SENDER, hoverButtons.get(COPY_NAME), hoverButtons.get(COPY_UUID)));
 			mainButtons.put(COPY_MENU_REPLY, of(0, COPY_MENU_REPLY, () -> "").setOtherPressAction(menuButton ->
-				chatField.setText( StringTextUtils.fillVars(config.copyReplyFormat, hoverButtons.get(COPY_NAME).copySupplier.get())
+				chatField.setText( CompiledFormats.copyReplyFormat().format(hoverButtons.get(COPY_NAME).copySupplier.get())
 			)));
 
 			// these two get extra width for the player head icon that renders, so it has enough space
@@ -341,6 +349,8 @@ public abstract class ChatScreenMixin extends Screen {
 
 	@WrapOperation(method = "tick", at = @At(value = "INVOKE", target = "Lnet/minecraft/client/gui/widget/TextFieldWidget;tick()V"))
 	public void tickSearchField(TextFieldWidget chatField, Operation<Void> tick) {
+		if(searchTask != null && searchTask.isDone())
+			applySearchTask();
 		if(updateSearchColor)
 			onSearchFieldUpdate(searchField.getText());
 
@@ -362,6 +372,7 @@ public abstract class ChatScreenMixin extends Screen {
 		if(config.messageDrafting)
 			messageDraft = chatField.getText();
 
+		cancelSearchTask();
 		resetCopyMenu();
 	}
 
@@ -580,7 +591,7 @@ public abstract class ChatScreenMixin extends Screen {
 		selectedLine =
 			chat.getMessages()
 				.stream()
-				.filter( msg -> Formatting.strip( msg.content().getString() ).startsWith(hoveredMessageFirst) )
+				.filter( msg -> chat.getMessages().stringOf(msg, false).startsWith(hoveredMessageFirst) )
 				.findFirst()
 				.orElse(NIL_HUD_LINE);
 		if(selectedLine.equals(NIL_HUD_LINE)) {
@@ -672,83 +683,155 @@ public abstract class ChatScreenMixin extends Screen {
 		});
 	}
 
-	/** Called when the search field is updated; also sets the regex error and the text input color. */
+	/**
+	 * Called when the search field is updated; also sets the regex error and the text input color.
+	 * Cancels any search still running for the previous text, and if the new one can't be searched
+	 * right away (see {@link #filterMessages(SearchQuery)}), shows {@link #SEARCHING} until
+	 * {@link #tickSearchField} applies the results.
+	 */
 	@Unique
 	private void onSearchFieldUpdate(String text) {
 		if(text.equals(lastSearch) && !updateSearchColor )
 			return;
 
+		cancelSearchTask();
 		if(!text.isEmpty()) {
 			searchField.setSuggestion(null);
 
-			if(regex.on) {
-				try {
-					Pattern.compile(text);
-					searchError = null;
-				} catch(PatternSyntaxException e) {
-					searchError = e;
-					client.inGameHud.getChatHud().reset();
-				}
-			}
+			try {
+				SearchQuery query = SearchQuery.compile(text, caseSensitive.on, modifiers.on, regex.on);
+				searchError = null;
 
-			List<ChatHudLine.Visible> filtered = filterMessages( searchError != null ? null : text );
-			if(searchError != null) {
-				searchField.setEditableColor(0xFF5555);
-				client.inGameHud.getChatHud().reset();
-			} else if(filtered.isEmpty()) {
-				searchField.setEditableColor(0xFFFF55);
-				client.inGameHud.getChatHud().reset();
-			} else {
-				searchField.setEditableColor(0x55FF55);
-
-				ChatHudAccessor chatHud = ChatHudAccessor.from(client);
-				chatHud.getVisibleMessages().clear();
-				chatHud.getVisibleMessages().addAll(filtered);
+				List<ChatHudLine.Visible> filtered = filterMessages(query);
+				if(filtered != null)
+					showSearchResults(filtered);
+				else
+					searchField.setSuggestion(SEARCHING);
+			} catch(PatternSyntaxException e) {
+				searchError = e;
+				searchResult = null;
+				showSearchResults(null);
 			}
 		} else {
 			client.inGameHud.getChatHud().reset();
 
 			searchError = null;
+			searchResult = null;
 			searchField.setEditableColor(0xE0E0E0); // default from TextFieldWidget
 			searchField.setSuggestion(SUGGESTION);
 		}
 
 		lastSearch = text;
+		updateSearchColor = false; // otherwise the next tick would cancel the search task this started and start it again
+	}
+
+	/**
+	 * Shows the {@code filtered} visible lines in the chat and colors the search field green,
+	 * or if there are none, resets the chat and colors it yellow. If {@code filtered} is
+	 * {@code null}, the search was invalid or stopped, so it's colored red instead.
+	 */
+	@Unique
+	private void showSearchResults(List<ChatHudLine.Visible> filtered) {
+		if(filtered == null) {
+			searchField.setEditableColor(0xFF5555);
+			client.inGameHud.getChatHud().reset();
+		} else if(filtered.isEmpty()) {
+			searchField.setEditableColor(0xFFFF55);
+			client.inGameHud.getChatHud().reset();
+		} else {
+			searchField.setEditableColor(0x55FF55);
+
+			ChatHudAccessor.from(client).setVisibleMessages(filtered);
+		}
+	}
+
+	/**
+	 * Applies the outcome of the finished {@link #searchTask}, wrapping each
+	 * matched message and caching any strings it created. If the messages
+	 * changed since it started, the matches that are gone are left out.
+	 */
+	@Unique
+	private void applySearchTask() {
+		SearchTask task = searchTask;
+		SearchTask.Outcome outcome = task.outcome();
+		searchTask = null;
+		searchField.setSuggestion(null);
+
+		if(outcome.stopped()) {
+			searchResult = null;
+			showSearchResults(null);
+			return;
+		}
+
+		final ChatHud chatHud = client.inGameHud.getChatHud();
+		final MessageList messages = ChatHudAccessor.from(chatHud).getMessages();
+		task.cacheResults(messages);
+
+		// lines trimmed or replaced since the search started can't be shown anymore
+		Set<ChatHudLine> current = null;
+		if(messages.version() != task.version()) {
+			current = Collections.newSetFromMap(new IdentityHashMap<>(messages.size()));
+			current.addAll(messages);
+		}
+
+		List<SearchResult.Match> matches = new ArrayList<>(outcome.matches().size());
+		for(ChatHudLine line : outcome.matches())
+			if(current == null || current.contains(line))
+				matches.add(new SearchResult.Match(line, createVisibles(List.of(line))));
+
+		searchResult = new SearchResult(task.query(), MathHelper.floor(chatHud.getWidth() / chatHud.getChatScale()), task.version(), matches);
+		showSearchResults(searchResult.visibles());
+	}
+
+	@Unique
+	private void cancelSearchTask() {
+		if(searchTask != null) {
+			searchTask.cancel();
+			searchTask = null;
+		}
 	}
 
 	/**
 	 * Filters all {@link ChatHudLine} messages from the {@link #client}'s ChatHud
-	 * matching the target string (configuration applied from {@link ChatSearchSetting#caseSensitive},
+	 * matching the compiled {@code query} (configuration applied from {@link ChatSearchSetting#caseSensitive},
 	 * {@link ChatSearchSetting#modifiers}, and {@link ChatSearchSetting#regex}) into a list of
 	 * {@link ChatHudLine.Visible} visibleMessages to be rendered onto the ChatHud. This does <u>not</u>
 	 * mutate or modify the actual {@link ChatHud#messages} list, only the {@link ChatHud#visibleMessages}
 	 * list that is automatically repopulated with new messages when needed.
+	 * <padding><br>If {@code query} only extends the last search (see {@link SearchResult#narrows}),
+	 * only the messages that matched it are checked again right away, reusing the visible lines
+	 * they were already wrapped into. Otherwise the messages are searched by a {@link SearchTask}
+	 * in the background and this returns {@code null}; a plain search only gives it the candidates
+	 * from {@link MessageList#searchCandidates(String, boolean)}, or every message if the index
+	 * isn't built yet, which the task then builds.</padding>
 	 */
 	@Unique
-	private List<ChatHudLine.Visible> filterMessages(String target) {
-		final ChatHudAccessor chatHud = ChatHudAccessor.from(client);
-		if(target == null)
-			return createVisibles( chatHud.getMessages() );
-
-		List<ChatHudLine> msgs = Lists.newArrayList( chatHud.getMessages() );
-
-		msgs.removeIf(hudLn -> {
-			String content = StringTextUtils.reorder(hudLn.content().asOrderedText(), modifiers.on);
-
-			// note that this NOTs the whole expression to simplify the complex nesting
-			// *removes* the message if it *doesn't* match
-			return !(
-				regex.on
-					? content.matches( (caseSensitive.on ? "(?i)" : "") + target )
-					: (
-						caseSensitive.on
-							? content.contains(target)
-							: StringUtils.containsIgnoreCase(content, target)
-					)
-			);
-		});
+	private List<ChatHudLine.Visible> filterMessages(SearchQuery query) {
+		final ChatHud chatHud = client.inGameHud.getChatHud();
+		final MessageList messages = ChatHudAccessor.from(chatHud).getMessages();
+		final int width = MathHelper.floor(chatHud.getWidth() / chatHud.getChatScale());
+
+		if(searchResult == null || !searchResult.narrows(query, width, messages.version())) {
+			// only the lines containing every trigram of a plain search can match it
+			List<ChatHudLine> candidates = query.hasText() && !query.isRegex() ? messages.searchCandidates(query.text(), query.modifiers()) : null;
+
+			searchTask = SearchTask.start(query, candidates, messages);
+			return null;
+		}
+
+		List<SearchResult.Match> matches = new ArrayList<>();
+		for(SearchResult.Match previous : searchResult.matches()) {
+			ChatHudLine line = previous.line();
+			if(query.hasClauses() && !query.matchesData(line, messages.dataOf(line)))
+				continue;
+			if(query.hasText() && !query.matchesText( messages.stringOf(line, query.modifiers()) ))
+				continue;
+
+			matches.add(previous);
+		}
 
-		return createVisibles(msgs);
+		searchResult = new SearchResult(query, width, messages.version(), matches);
+		return searchResult.visibles();
 	}
 
 	/**
@@ -761,11 +844,12 @@ public abstract class ChatScreenMixin extends Screen {
 	private List<ChatHudLine.Visible> createVisibles(List<ChatHudLine> messages) {
 		List<ChatHudLine.Visible> generated = Lists.newArrayListWithExpectedSize(messages.size());
 		ChatHud chatHud = client.inGameHud.getChatHud();
+		MessageList wrapCache = ChatHudAccessor.from(chatHud).getMessages();
 
 		messages.forEach(hudLn -> {
 			MessageIndicator ind = hudLn.indicator();
 			int width = (int) ((double)chatHud.getWidth() / chatHud.getChatScale()) - (ind != null && ind.icon() != null ? ind.icon().width + 6 : 0);
-			List<OrderedText> list = ChatMessages.breakRenderedChatMessageLines(hudLn.content(), width, this.client.textRenderer);
+			List<OrderedText> list = wrapCache.wrap(hudLn.content(), width, () -> ChatMessages.breakRenderedChatMessageLines(hudLn.content(), width, this.client.textRenderer));
 
 			for(int i = list.size()-1; i >= 0; --i)
 				generated.add(new ChatHudLine.Visible(hudLn.creationTick(), list.get(i), ind, (i == list.size() - 1)));
@@ -2,21 +2,20 @@ package obro1961.chatpatches.util;
 
 import com.mojang.authlib.GameProfile;
 import net.minecraft.client.MinecraftClient;
-import net.minecraft.client.gui.hud.ChatHud;
 import net.minecraft.client.gui.hud.ChatHudLine;
 import net.minecraft.client.gui.hud.MessageIndicator;
-import net.minecraft.client.util.ChatMessages;
 import net.minecraft.network.message.MessageSignatureData;
-import net.minecraft.text.MutableText;
-import net.minecraft.text.OrderedText;
-import net.minecraft.text.Text;
-import net.minecraft.util.math.MathHelper;
+import net.minecraft.text.*;
+import net.minecraft.util.Util;
 import obro1961.chatpatches.accessor.ChatHudAccessor;
 import obro1961.chatpatches.mixin.gui.ChatHudMixin;
+import org.jetbrains.annotations.Nullable;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.regex.Pattern;
 
@@ -36,6 +35,14 @@ public class ChatUtils {
 	 * would return false.
 	 */
 	public static final Pattern VANILLA_MESSAGE = Pattern.compile("^<(?<name>[a-zA-Z0-9_]{3,16})> (?<message>[^\\u0000-\\u001f\\u007f§]+)$");
+	/** The maximum amount of playernames remembered by {@link #getUuid(MinecraftClient, String)} */
+	private static final int UUID_CACHE_SIZE = 256;
+	private static final Map<String, UUID> uuidCache = new LinkedHashMap<>(UUID_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+			return size() > UUID_CACHE_SIZE;
+		}
+	};
 
 	/**
 	 * Tries to condense the {@code index} message into the incoming message
@@ -57,19 +64,18 @@ public class ChatUtils {
 	 * @implNote
 	 * <ol>
 	 *     <li>IF the actual message content of the incoming message and the message being compared are equal, continue.</li>
-	 *     <li>Cache the number of duped messages, either from the message being compared or from inference plus (this) one.</li>
+	 *     <li>Cache the number of duped messages, from the {@link LineData} of the message being compared plus (this) one,
+	 *     and stage it for the incoming message.</li>
 	 *     <li>Add the dupe counter to the incoming message.</li>
-	 *     <li>Remove the message being compared.</li>
-	 *     <li>Calculate and then remove all visible messages from the last message, compared as {@link String}s from {@link StringTextUtils#reorder(OrderedText, boolean)}.</li>
+	 *     <li>Remove the message being compared, and then exactly the visible lines it was wrapped into
+	 *     (from {@link MessageList#visiblesOf(ChatHudLine)}).</li>
 	 *     <li>Return the incoming message, regardless of if it was modified or not.</li>
 	 * </ol>
 	 */
 	public static Text getCondensedMessage(Text incoming, int index) {
-		final MinecraftClient client = MinecraftClient.getInstance();
-		final ChatHud chatHud = client.inGameHud.getChatHud();
-		final ChatHudAccessor chat = ChatHudAccessor.from(chatHud);
-		final List<ChatHudLine> messages = chat.getMessages();
-		final List<ChatHudLine.Visible> visibleMessages = chat.getVisibleMessages();
+		final ChatHudAccessor chat = ChatHudAccessor.from(MinecraftClient.getInstance());
+		final MessageList messages = chat.getMessages();
+		final List<ChatHudLine.Visible> visibleMessages = chat.getAllVisibleMessages(); // messages are removed, so they can't be rebuilding
 
 		ChatHudLine comparingLine = messages.get(index); // message being compared
 		List<Text> comparingParts = comparingLine.content().getSiblings();
@@ -80,11 +86,10 @@ public class ChatUtils {
 		if( incomingParts.get(OG_MSG_INDEX).getString().equalsIgnoreCase(comparingParts.get(OG_MSG_INDEX).getString()) ) {
 
 			// warning: according to some limited testing, incoming messages (incomingParts) will never contain a dupe counter, so it's been omitted from this check
-			int dupes = (
-				(comparingParts.size() > DUPE_COUNTER_INDEX)
-					? Integer.parseInt(StringTextUtils.delAll(comparingParts.get(DUPE_COUNTER_INDEX).getString(), "(§[0-9a-fk-or])+", "\\D"))
-					: 1
-			) + 1;
+			int dupes = messages.dataOf(comparingLine).dupes() + 1;
+			LineData incomingData = messages.staged();
+			if(incomingData != null)
+				messages.stage(incomingData.withDupes(dupes));
 
 
 			// i think when old messages are re-added into the chat, it keeps the dupe counter so we have to use set() instead of add() sometimes
@@ -93,13 +98,9 @@ public class ChatUtils {
 			else
 				incomingParts.add(DUPE_COUNTER_INDEX, config.makeDupeCounter(dupes));
 
+			List<ChatHudLine.Visible> comparingVisibles = messages.visiblesOf(comparingLine);
 			messages.remove(index);
-
-			List<String> calcVisibles = ChatMessages.breakRenderedChatMessageLines(comparingLine.content(), MathHelper.floor(chatHud.getWidth() / chatHud.getChatScale()), client.textRenderer)
-				.stream()
-				.map( visible -> StringTextUtils.reorder(visible, false) )
-				.toList();
-			visibleMessages.removeIf(hudLine -> calcVisibles.stream().anyMatch(ot -> ot.equalsIgnoreCase( StringTextUtils.reorder(hudLine.content(), false) )));
+			removeVisibles(visibleMessages, comparingVisibles);
 
 			// same as {@code incoming} but with the appropriate transformations
 			return incomingParts.stream().map(Text::copy).reduce(MutableText.of( incoming.getContent() ), MutableText::append).setStyle( incoming.getStyle() );
@@ -109,6 +110,184 @@ public class ChatUtils {
 	}
 
 
+	/**
+	 * Returns the name of the player who sent {@code message} if it's formatted like
+	 * a vanilla chat message, which is when its text without formatting codes matches
+	 * {@link #VANILLA_MESSAGE}, otherwise returns {@code null}.
+	 * <padding><br>Equivalent to matching the regex against
+	 * {@link TextVisitFactory#removeFormattingCodes(StringVisitable)}, but scans the
+	 * message in one pass through its visitor instead, stopping at the first character
+	 * that can't match and without building any strings other than the name.</padding>
+	 */
+	public static @Nullable String getVanillaSender(Text message) {
+		VanillaMessageScanner scanner = new VanillaMessageScanner();
+		TextVisitFactory.visitFormatted(message, Style.EMPTY, scanner);
+		return scanner.matched() ? scanner.name.toString() : null;
+	}
+
+	/**
+	 * Returns the UUID of the player named {@code name} from the
+	 * {@link net.minecraft.client.network.SocialInteractionsManager}, or
+	 * {@link Util#NIL_UUID} if it's unknown. Found UUIDs are remembered for the
+	 * {@link #UUID_CACHE_SIZE} most recent names until {@link #clearUuidCache()},
+	 * so senders who already left the player list still resolve.
+	 */
+	public static UUID getUuid(MinecraftClient client, String name) {
+		UUID cached = uuidCache.get(name);
+		if(cached != null)
+			return cached;
+
+		UUID uuid = client.getSocialInteractionsManager().getUuid(name);
+		if( !uuid.equals(Util.NIL_UUID) )
+			uuidCache.put(name, uuid);
+
+		return uuid;
+	}
+
+	/** Forgets all UUIDs cached by {@link #getUuid(MinecraftClient, String)}; called when leaving a server. */
+	public static void clearUuidCache() {
+		uuidCache.clear();
+	}
+
+	/**
+	 * Removes the {@code produced} visible lines of a single message from {@code visibleMessages}.
+	 * They're compared by identity, so other messages with the same text are left alone, and
+	 * since they're next to each other only the first one has to be searched for. Lines that
+	 * were already trimmed (or replaced by a search) are ignored.
+	 */
+	private static void removeVisibles(List<ChatHudLine.Visible> visibleMessages, List<ChatHudLine.Visible> produced) {
+		if(produced.isEmpty())
+			return;
+
+		int start = 0;
+		while(start < visibleMessages.size() && visibleMessages.get(start) != produced.get(0))
+			++start;
+
+		int end = start;
+		while(end < visibleMessages.size() && end - start < produced.size() && visibleMessages.get(end) == produced.get(end - start))
+			++end;
+
+		visibleMessages.subList(start, end).clear();
+	}
+
+
+	/**
+	 * Matches the characters of a message against {@link #VANILLA_MESSAGE}
+	 * one at a time, for {@link #getVanillaSender(Text)}.
+	 */
+	private static final class VanillaMessageScanner implements CharacterVisitor {
+		private static final int OPEN = 0, NAME = 1, SPACE = 2, BODY = 3, FAILED = 4;
+
+		private final StringBuilder name = new StringBuilder(16);
+		private int state = OPEN;
+		private int bodyLength = 0;
+
+		@Override
+		public boolean accept(int index, Style style, int c) {
+			switch(state) {
+				case OPEN -> state = c == '<' ? NAME : FAILED;
+				case NAME -> {
+					if(c == '>')
+						state = name.length() >= 3 ? SPACE : FAILED;
+					else if(name.length() < 16 && ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'))
+						name.append((char) c);
+					else
+						state = FAILED;
+				}
+				case SPACE -> state = c == ' ' ? BODY : FAILED;
+				case BODY -> {
+					if(c <= 0x1f || c == 0x7f || c == '§')
+						state = FAILED;
+					else
+						++bodyLength;
+				}
+			}
+
+			return state != FAILED; // stops visiting once it can't match
+		}
+
+		private boolean matched() {
+			return state == BODY && bodyLength > 0;
+		}
+	}
+
+
 	/** Represents the metadata of a chat message. */
 	public record MessageData(GameProfile sender, Instant timestamp, boolean vanilla) {}
+
+	/**
+	 * The metadata of a {@link ChatHudLine}, stored next to it in the {@link MessageList}
+	 * so it can be read without taking apart its {@link Text}.
+	 *
+	 * @param timestamp when the message was received in epoch milliseconds, or {@code 0} if unknown
+	 * @param sender the UUID of the player who sent it, or {@link #NIL_UUID}
+	 * @param dupes how many times it was received in a row (see {@link #getCondensedMessage(Text, int)})
+	 * @param world the name of the world it was received in, from {@link MiscUtils#currentWorldName(MinecraftClient)}, or empty if unknown
+	 */
+	public record LineData(long timestamp, UUID sender, int dupes, String world) {
+		public LineData withDupes(int dupes) {
+			return new LineData(timestamp, sender, dupes, world);
+		}
+
+		/**
+		 * Recovers the metadata of a message that was added without any, like one restored
+		 * from the chat log, from the components laid out by
+		 * {@link ChatHudMixin#modifyMessage(Text, Text, MessageSignatureData, int, MessageIndicator, boolean)}.
+		 * The world isn't stored in the message, so it has to be passed as {@code world}.
+		 * <padding><br>The sender isn't stored on its own either (not even in the chat log), so it's only
+		 * recovered from the player hover on the sender's name, which is on the formatted name
+		 * ({@link ChatUtils#MSG_NAME_INDEX}) or, with the default name format, on the name argument of
+		 * a vanilla {@code chat.type.*} message. Any other message gets {@link #NIL_UUID}, so the
+		 * {@code from:} search clause falls back to matching those by their name instead.</padding>
+		 * Much slower than reading it from the {@link MessageList}, so it's only done
+		 * once for each line.
+		 */
+		public static LineData of(Text content, String world) {
+			List<Text> parts = content.getSiblings();
+
+			long timestamp = 0;
+			String insertion = parts.size() > TIMESTAMP_INDEX ? parts.get(TIMESTAMP_INDEX).getStyle().getInsertion() : null;
+			if(insertion != null && !insertion.isEmpty()) {
+				try {
+					timestamp = Long.parseLong(insertion);
+				} catch(NumberFormatException ignored) {}
+			}
+
+			UUID sender = NIL_UUID;
+			Text og = parts.size() > OG_MSG_INDEX ? parts.get(OG_MSG_INDEX) : Text.empty();
+			List<Text> ogParts = og.getSiblings();
+			HoverEvent nameHover = ogParts.size() > MSG_NAME_INDEX ? ogParts.get(MSG_NAME_INDEX).getStyle().getHoverEvent() : null;
+			// unformatted vanilla chat messages still have the name as their first argument
+			if(nameHover == null && og.getContent() instanceof TranslatableTextContent ttc && ttc.getKey().startsWith("chat.type.") && ttc.getArgs().length > 0 && ttc.getArgs()[0] instanceof Text name)
+				nameHover = name.getStyle().getHoverEvent();
+			HoverEvent.EntityContent player = nameHover != null ? nameHover.getValue(HoverEvent.Action.SHOW_ENTITY) : null;
+			if(player != null)
+				sender = player.uuid;
+
+			int dupes = parts.size() > DUPE_COUNTER_INDEX ? parseDupes(parts.get(DUPE_COUNTER_INDEX).getString()) : 1;
+
+			return new LineData(timestamp, sender, dupes, world);
+		}
+
+		/**
+		 * Returns the number in the dupe counter {@code counter}, which is every digit
+		 * in it besides the ones in formatting codes, or {@code 1} if there are none.
+		 */
+		private static int parseDupes(String counter) {
+			long dupes = 0;
+			boolean digits = false;
+
+			for(int i = 0; i < counter.length(); ++i) {
+				char c = counter.charAt(i);
+				if(c == '§' && i + 1 < counter.length() && "0123456789abcdefklmnor".indexOf(counter.charAt(i + 1)) != -1) {
+					++i; // skips the formatting code
+				} else if(c >= '0' && c <= '9') {
+					dupes = Math.min(dupes * 10 + (c - '0'), Integer.MAX_VALUE);
+					digits = true;
+				}
+			}
+
+			return digits ? (int) dupes : 1;
+		}
+	}
 }
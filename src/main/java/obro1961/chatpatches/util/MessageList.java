@@ -0,0 +1,464 @@
+package obro1961.chatpatches.util;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.hud.ChatHudLine;
+import net.minecraft.text.OrderedText;
+import net.minecraft.text.Text;
+import obro1961.chatpatches.mixin.gui.ChatHudMixin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import static obro1961.chatpatches.util.ChatUtils.OG_MSG_INDEX;
+
+/**
+ * The {@link RingList} that {@link ChatHudMixin} stores the chat's
+ * {@link ChatHudLine}s in, newest first. Also keeps an index from the
+ * case-folded original message body ({@link ChatUtils#OG_MSG_INDEX}) of each
+ * line to the newest line with that body, so the duplicate counter can find a
+ * message to condense in O(1) instead of comparing every message in the chat.
+ * <padding><br>Each line is also linked to the {@link ChatHudLine.Visible}s
+ * it was wrapped into, so removing a message only has to remove those exact
+ * lines from {@link net.minecraft.client.gui.hud.ChatHud#visibleMessages}
+ * instead of re-wrapping it and comparing the text of every visible line.</padding>
+ * <padding><br>The wrapped lines of every message are also cached by {@link #wrap(Text, int, Supplier)},
+ * so rebuilding {@link net.minecraft.client.gui.hud.ChatHud#visibleMessages} (on
+ * {@link net.minecraft.client.gui.hud.ChatHud#reset()} or searching) doesn't wrap every
+ * unchanged message again. Each one is cached with the width it was wrapped to, so changing the
+ * chat width or scale re-wraps it, and the whole cache is dropped when the font changes.</padding>
+ * <padding><br>The plain and {@code &}-coded text of each line ({@link #stringOf(ChatHudLine, boolean)})
+ * is also cached once it's first needed, for searching and the copy menu.</padding>
+ * <padding><br>For searching, {@link #searchCandidates(String, boolean)} keeps a {@link TrigramIndex}
+ * of the lines' text (and another of their text with formatting codes), which is built in the
+ * background by the first {@link SearchTask} that needs it and then kept up to date with the lines.</padding>
+ * <padding><br>Lastly, each line has a {@link ChatUtils.LineData} with its timestamp,
+ * sender, dupe count and world, which is staged by {@link #stage(ChatUtils.LineData)}
+ * while the message is being formatted and then attached to the line it ends up as.</padding>
+ * <padding><br>The index is updated by every method that adds, replaces or
+ * removes a line, so it stays correct no matter if vanilla, this mod, or an
+ * iterator or sublist changes the list. Only the newest line of each body is
+ * indexed, but every body's lines are counted, so if the newest one is removed
+ * or replaced while older ones are left (or a line is put between them), the
+ * newest one left is found again the next time it's looked up. Condensing
+ * removes the newest one and then adds a new newest one, so it never has to.</padding>
+ */
+public class MessageList extends RingList<ChatHudLine> {
+	private final Map<String, ChatHudLine> newestByBody = new HashMap<>();
+	private final Object2IntOpenHashMap<String> bodyCounts = new Object2IntOpenHashMap<>(); // how many lines have each body
+	private final Map<ChatHudLine, List<ChatHudLine.Visible>> visibles = new IdentityHashMap<>();
+	private final Map<ChatHudLine, ChatUtils.LineData> data = new IdentityHashMap<>();
+	private @Nullable ChatUtils.LineData staged = null;
+	private final Map<Text, Wrapped> wrapped = new IdentityHashMap<>();
+	private boolean wrappedUnicode = false; // the force unicode font option the cached lines were wrapped with
+	private int version = 0;
+	private @Nullable TrigramIndex plainIndex = null, codedIndex = null; // built by the first search task that needs them
+	private final Map<ChatHudLine, Strings> strings = new IdentityHashMap<>();
+
+
+	/** The lines a message was wrapped into, and the width it was wrapped to */
+	private record Wrapped(int width, List<OrderedText> lines) {}
+
+	/** The text of a message, without and with {@code &<?>} codes */
+	public record Strings(String plain, String coded) {
+		/** Creates both forms of {@code line}'s text in a single pass, see {@link StringTextUtils#reorder(OrderedText, StringBuilder, StringBuilder)}. */
+		public static Strings of(ChatHudLine line) {
+			StringBuilder plain = new StringBuilder(), coded = new StringBuilder();
+			StringTextUtils.reorder(line.content().asOrderedText(), plain, coded);
+			return new Strings(plain.toString(), coded.toString());
+		}
+
+		/** Returns the form with {@code &<?>} codes if {@code modifiers} is true, otherwise the plain one. */
+		public String get(boolean modifiers) {
+			return modifiers ? coded : plain;
+		}
+	}
+
+
+	/**
+	 * Returns the key {@code message} is indexed under, which is its original
+	 * message body with its case folded by {@link StringTextUtils#foldCase(String)}
+	 * (so it matches exactly the bodies {@link String#equalsIgnoreCase(String)} does),
+	 * or {@code null} if it wasn't formatted by {@link ChatHudMixin}.
+	 */
+	public static @Nullable String keyOf(Text message) {
+		List<Text> parts = message.getSiblings();
+		return parts.size() > OG_MSG_INDEX ? StringTextUtils.foldCase( parts.get(OG_MSG_INDEX).getString() ) : null;
+	}
+
+	/** Returns the newest line with the same original message body as {@code message}, ignoring case. */
+	public @Nullable ChatHudLine findNewest(Text message) {
+		String key = keyOf(message);
+		if(key == null)
+			return null;
+
+		ChatHudLine newest = newestByBody.get(key);
+		if(newest == null && bodyCounts.getInt(key) > 0) {
+			// the indexed line was removed or replaced, so looks for the newest one left
+			for(int i = 0; i < size() && newest == null; ++i)
+				if(key.equals( keyOf(get(i).content()) ))
+					newest = get(i);
+
+			if(newest != null)
+				newestByBody.put(key, newest);
+		}
+
+		return newest;
+	}
+
+	/**
+	 * Returns the index of {@code line} if it's one of the first {@code limit}
+	 * lines, otherwise {@code -1}. Compares by identity, unlike {@link #indexOf(Object)}
+	 * which compares the whole {@link Text} of every line since {@link ChatHudLine} is a record.
+	 */
+	public int indexOf(ChatHudLine line, int limit) {
+		for(int i = 0, end = Math.min(limit, size()); i < end; ++i)
+			if(get(i) == line)
+				return i;
+		return -1;
+	}
+
+
+	/**
+	 * Returns a number that changes whenever a line is added, replaced or removed,
+	 * so anything computed from the lines can tell if it's out of date.
+	 */
+	public int version() {
+		return version;
+	}
+
+
+	/**
+	 * Links {@code line} to the {@code produced} visible lines it was wrapped
+	 * into, in the order they appear in {@link net.minecraft.client.gui.hud.ChatHud#visibleMessages}
+	 * (so the last line of the message first). Replaces any previous ones,
+	 * like when the chat is refreshed. Can be called before {@code line} is added.
+	 */
+	public void setVisibles(ChatHudLine line, List<ChatHudLine.Visible> produced) {
+		visibles.put(line, produced);
+	}
+
+	/** Returns the visible lines {@code line} was wrapped into, or an empty list if it wasn't. */
+	public List<ChatHudLine.Visible> visiblesOf(ChatHudLine line) {
+		return visibles.getOrDefault(line, List.of());
+	}
+
+	/**
+	 * Replaces every line of {@code visibleMessages} with the result of {@code operator}
+	 * like {@link List#replaceAll(UnaryOperator)}, and keeps every message linked to
+	 * the replacements of its visible lines.
+	 */
+	public void replaceVisibles(List<ChatHudLine.Visible> visibleMessages, UnaryOperator<ChatHudLine.Visible> operator) {
+		Map<ChatHudLine.Visible, ChatHudLine.Visible> replaced = new IdentityHashMap<>(visibleMessages.size());
+		visibleMessages.replaceAll(visible -> {
+			ChatHudLine.Visible replacement = operator.apply(visible);
+			replaced.put(visible, replacement);
+			return replacement;
+		});
+
+		visibles.replaceAll((line, produced) -> produced.stream().map(visible -> replaced.getOrDefault(visible, visible)).toList());
+	}
+
+
+	/**
+	 * Stages the metadata of the message currently being added,
+	 * until {@link #commitStaged(ChatHudLine)} attaches it to its line.
+	 */
+	public void stage(@Nullable ChatUtils.LineData lineData) {
+		staged = lineData;
+	}
+
+	/** Returns the metadata staged for the message currently being added, if any. */
+	public @Nullable ChatUtils.LineData staged() {
+		return staged;
+	}
+
+	/** Attaches the staged metadata (if there is any) to {@code line}, and unstages it. */
+	public void commitStaged(ChatHudLine line) {
+		if(staged != null)
+			data.put(line, staged);
+		staged = null;
+	}
+
+	/**
+	 * Attaches {@code lineData} to {@code line}, for lines added without going through
+	 * {@link #stage(ChatUtils.LineData)}, like the ones restored from the chat log.
+	 * Can be called before {@code line} is added.
+	 */
+	public void setData(ChatHudLine line, ChatUtils.LineData lineData) {
+		data.put(line, lineData);
+	}
+
+	/**
+	 * Returns the metadata of {@code line}. If it was somehow added without any,
+	 * it's recovered from its content once with {@link ChatUtils.LineData#of(Text, String)}
+	 * instead, without a world since there's no way to know which one it was received in.
+	 */
+	public ChatUtils.LineData dataOf(ChatHudLine line) {
+		ChatUtils.LineData lineData = cachedData(line);
+		if(lineData == null)
+			data.put(line, lineData = ChatUtils.LineData.of(line.content(), ""));
+
+		return lineData;
+	}
+
+	/** Returns the metadata attached to {@code line}, or {@code null} if it has none (see {@link #dataOf(ChatHudLine)}). */
+	public @Nullable ChatUtils.LineData cachedData(ChatHudLine line) {
+		return data.get(line);
+	}
+
+
+	/**
+	 * Returns the lines {@code content} is wrapped into at {@code width}, from the
+	 * cache if it was already wrapped to that width, otherwise from {@code wrapper}
+	 * (which should call {@link net.minecraft.client.util.ChatMessages#breakRenderedChatMessageLines}).
+	 * The cached lines are dropped when {@code content}'s line is removed.
+	 */
+	public List<OrderedText> wrap(Text content, int width, Supplier<List<OrderedText>> wrapper) {
+		boolean unicode = MinecraftClient.getInstance().options.getForceUnicodeFont().getValue();
+		if(unicode != wrappedUnicode) {
+			wrapped.clear();
+			wrappedUnicode = unicode;
+		}
+
+		Wrapped cached = wrapped.get(content);
+		if(cached != null && cached.width() == width)
+			return cached.lines();
+
+		List<OrderedText> lines = wrapper.get();
+		wrapped.put(content, new Wrapped(width, lines));
+		return lines;
+	}
+
+	/**
+	 * Returns the text of {@code line} like {@link StringTextUtils#reorder(OrderedText, boolean)},
+	 * with {@code &<?>} codes if {@code modifiers} is true. Both are created in the same
+	 * pass the first time either is needed, and kept until the line is removed.
+	 */
+	public String stringOf(ChatHudLine line, boolean modifiers) {
+		Strings forms = strings.get(line);
+		if(forms == null)
+			strings.put(line, forms = Strings.of(line));
+
+		return forms.get(modifiers);
+	}
+
+	/** Returns the cached {@link Strings} of {@code line}, or {@code null} if they weren't created yet. */
+	public @Nullable Strings cachedStrings(ChatHudLine line) {
+		return strings.get(line);
+	}
+
+	/**
+	 * Caches the {@link Strings} of {@code line} that were created elsewhere, like by a
+	 * {@link SearchTask}. {@code line} has to be in this list, or it would never be removed.
+	 */
+	public void cacheStrings(ChatHudLine line, Strings forms) {
+		strings.putIfAbsent(line, forms);
+	}
+
+	/**
+	 * Returns the lines that could contain {@code query} (newest first), from the
+	 * {@link TrigramIndex} of their text, with formatting codes if {@code modifiers}
+	 * is true like {@link StringTextUtils#reorder}. Every candidate still has to be
+	 * checked. Returns {@code null} if the query is too short to narrow down the
+	 * lines or that index isn't built (see {@link #hasSearchIndex(boolean)}), so all
+	 * of them have to be checked.
+	 */
+	public @Nullable List<ChatHudLine> searchCandidates(String query, boolean modifiers) {
+		TrigramIndex index = searchIndex(modifiers);
+		return index != null ? index.candidates(query) : null;
+	}
+
+	/**
+	 * Returns true if the {@link TrigramIndex} for {@code modifiers} is built and up to date.
+	 * If it isn't, a {@link SearchTask} searching every line builds it, see {@link #setSearchIndex}.
+	 */
+	public boolean hasSearchIndex(boolean modifiers) {
+		return searchIndex(modifiers) != null;
+	}
+
+	/**
+	 * Uses {@code index} of every line's text (with formatting codes if {@code modifiers} is true)
+	 * for {@link #searchCandidates(String, boolean)}. It has to be of the lines as they are now.
+	 */
+	public void setSearchIndex(@Nullable TrigramIndex index, boolean modifiers) {
+		if(modifiers)
+			codedIndex = index;
+		else
+			plainIndex = index;
+	}
+
+	/** Drops every cached wrapped line, because the font changed. */
+	public void clearWrapped() {
+		wrapped.clear();
+	}
+
+
+	@Override
+	public void add(int index, ChatHudLine line) {
+		boolean end = index == 0 || index == size(); // delegates to addFirst or addLast
+		int at = !end && isFull() ? index - 1 : index; // inserting into a full list evicts the first line
+		super.add(index, line);
+		if(!end && capacity() > 0) {
+			index(line, at);
+			indexForSearch(line, at);
+			++version;
+		}
+	}
+
+	@Override
+	public @Nullable ChatHudLine addFirst(ChatHudLine line) {
+		ChatHudLine evicted = super.addFirst(line);
+		if(capacity() > 0) {
+			index(line, 0);
+			indexForSearch(line, 0);
+		}
+		++version;
+		return evicted;
+	}
+
+	@Override
+	public @Nullable ChatHudLine addLast(ChatHudLine line) {
+		ChatHudLine evicted = super.addLast(line);
+		if(capacity() > 0) {
+			index(line, size() - 1);
+			indexForSearch(line, size() - 1);
+		}
+		++version;
+		return evicted;
+	}
+
+	@Override
+	public ChatHudLine set(int index, ChatHudLine line) {
+		ChatHudLine old = super.set(index, line);
+		if(old == line)
+			return old;
+
+		// a replacement without its own metadata (like vanilla's deleted message marker) takes the old line's place
+		ChatUtils.LineData oldData = data.get(old);
+		if(oldData != null && !data.containsKey(line))
+			data.put(line, oldData.withDupes(1));
+
+		if(plainIndex != null && !plainIndex.replace(old, line, stringOf(line, false)))
+			plainIndex = null;
+		if(codedIndex != null && !codedIndex.replace(old, line, stringOf(line, true)))
+			codedIndex = null;
+		unindex(old);
+		index(line, index);
+		++version;
+		return old;
+	}
+
+	@Override
+	public ChatHudLine remove(int index) {
+		ChatHudLine removed = super.remove(index);
+		unindex(removed);
+		++version;
+		return removed;
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		for(int i = Math.max(0, fromIndex), end = Math.min(toIndex, size()); i < end; ++i)
+			unindex(get(i));
+		super.removeRange(fromIndex, toIndex);
+		++version;
+	}
+
+	@Override
+	public void clear() {
+		newestByBody.clear();
+		bodyCounts.clear();
+		visibles.clear();
+		data.clear();
+		wrapped.clear();
+		strings.clear();
+		dropSearchIndexes();
+		super.clear();
+		++version;
+	}
+
+
+	/**
+	 * Indexes {@code line}, which was added at {@code index}. If it's the newest line it replaces
+	 * any indexed line with its body, and if it's the oldest it's only indexed if there is none.
+	 * Otherwise it's unknown which one is newer, so the indexed one is forgotten and
+	 * {@link #findNewest(Text)} finds it again when it's needed.
+	 */
+	private void index(ChatHudLine line, int index) {
+		String key = keyOf(line.content());
+		if(key == null)
+			return;
+
+		bodyCounts.addTo(key, 1);
+		if(index == 0)
+			newestByBody.put(key, line);
+		else if(index == size() - 1)
+			newestByBody.putIfAbsent(key, line);
+		else
+			newestByBody.remove(key);
+	}
+
+	/** Adds {@code line}, which is now at {@code index}, to the search indexes that were built. */
+	private void indexForSearch(ChatHudLine line, int index) {
+		plainIndex = indexForSearch(plainIndex, line, index, false);
+		codedIndex = indexForSearch(codedIndex, line, index, true);
+	}
+
+	/** Returns {@code searchIndex} with {@code line} added at {@code index}, or {@code null} if it has to be rebuilt. */
+	private @Nullable TrigramIndex indexForSearch(@Nullable TrigramIndex searchIndex, ChatHudLine line, int index, boolean modifiers) {
+		if(searchIndex == null)
+			return null;
+
+		String indexed = stringOf(line, modifiers);
+		if(index == 0)
+			searchIndex.add(line, indexed);
+		else if(index == size() - 1)
+			searchIndex.addOldest(line, indexed);
+		else if(!searchIndex.addBetween(line, indexed, get(index + 1), get(index - 1)))
+			return null;
+
+		return searchIndex;
+	}
+
+	/** Returns the search index for {@code modifiers}, or {@code null} if it isn't built or was stale, so it's dropped. */
+	private @Nullable TrigramIndex searchIndex(boolean modifiers) {
+		TrigramIndex index = modifiers ? codedIndex : plainIndex;
+		if(index != null && index.isStale()) {
+			setSearchIndex(null, modifiers);
+			return null;
+		}
+
+		return index;
+	}
+
+	private void dropSearchIndexes() {
+		plainIndex = null;
+		codedIndex = null;
+	}
+
+	private void unindex(ChatHudLine line) {
+		visibles.remove(line);
+		data.remove(line);
+		wrapped.remove(line.content());
+		strings.remove(line);
+		if(plainIndex != null)
+			plainIndex.remove(line);
+		if(codedIndex != null)
+			codedIndex.remove(line);
+
+		String key = keyOf(line.content());
+		if(key == null)
+			return;
+
+		if(newestByBody.get(key) == line) // not remove(key, line), which compares the whole Text
+			newestByBody.remove(key);
+		if(bodyCounts.addTo(key, -1) <= 1)
+			bodyCounts.removeInt(key);
+	}
+}
@@ -0,0 +1,305 @@
+package obro1961.chatpatches.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A {@link java.util.List} backed by a circular array, so adding or removing
+ * elements at either end is O(1) instead of shifting every other element
+ * like an {@link java.util.ArrayList} does for its head. Adding or removing
+ * anywhere else only shifts the elements on the shorter side.
+ * <padding><br>Optionally has a maximum capacity; once it's full, adding
+ * a new element evicts the one at the opposite end in O(1). Inserting at
+ * index {@code 0} evicts the last element, while any other insert evicts
+ * the first one. The evicted element is returned by {@link #addLast(Object)}
+ * and {@link #addFirst(Object)}.</padding>
+ */
+public class RingList<E> extends AbstractList<E> implements RandomAccess {
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+	private static final int MIN_ARRAY_SIZE = 16;
+
+	private Object[] elements;
+	private int head = 0; // array index of the element at list index 0
+	private int size = 0;
+	private int capacity;
+
+
+	/** Creates an empty RingList that can grow indefinitely. */
+	public RingList() {
+		this(UNBOUNDED);
+	}
+
+	/** Creates an empty RingList that holds at most {@code capacity} elements. */
+	public RingList(int capacity) {
+		if(capacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+
+		this.capacity = capacity;
+		this.elements = new Object[Math.min(capacity, MIN_ARRAY_SIZE)];
+	}
+
+	/** Creates a RingList that holds at most {@code capacity} elements, initialized with the last {@code capacity} elements of {@code from}. */
+	public RingList(int capacity, Collection<? extends E> from) {
+		this(capacity);
+		from.forEach(this::addLast);
+	}
+
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Changes the maximum capacity, evicting the first (oldest) elements
+	 * if there are more than {@code newCapacity} of them. Also shrinks the
+	 * backing array so evicted elements don't stay reachable.
+	 *
+	 * @return the number of evicted elements
+	 */
+	public int setCapacity(int newCapacity) {
+		if(newCapacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative: " + newCapacity);
+
+		int evicted = Math.max(0, size - newCapacity);
+		if(evicted > 0)
+			removeRange(0, evicted);
+
+		capacity = newCapacity;
+		if(elements.length > Math.max(capacity, MIN_ARRAY_SIZE))
+			reallocate(Math.max(size, Math.min(capacity, MIN_ARRAY_SIZE)));
+
+		return evicted;
+	}
+
+	public boolean isFull() {
+		return size >= capacity;
+	}
+
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E get(int index) {
+		checkIndex(index, size);
+		return (E) elements[slot(index)];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E set(int index, E element) {
+		checkIndex(index, size);
+		int slot = slot(index);
+		E old = (E) elements[slot];
+		elements[slot] = element;
+		return old;
+	}
+
+	/** Appends {@code element} in O(1); equivalent to {@link #addLast(Object)}. */
+	@Override
+	public boolean add(E element) {
+		addLast(element);
+		return true;
+	}
+
+	@Override
+	public void add(int index, E element) {
+		checkIndex(index, size + 1);
+
+		if(index == 0)
+			addFirst(element);
+		else if(index == size)
+			addLast(element);
+		else {
+			if(capacity == 0)
+				return;
+			if(isFull()) {
+				removeFirst();
+				--index;
+			}
+			ensureArraySize(size + 1);
+
+			// shifts whichever side is shorter to open up a slot at the index
+			if(index < size / 2) {
+				head = wrap(head - 1);
+				for(int i = 0; i < index; ++i)
+					elements[slot(i)] = elements[slot(i + 1)];
+			} else {
+				for(int i = size; i > index; --i)
+					elements[slot(i)] = elements[slot(i - 1)];
+			}
+			elements[slot(index)] = element;
+			++size;
+			++modCount;
+		}
+	}
+
+	/**
+	 * Inserts all of {@code from} at {@code index}, keeping their order. Inserting
+	 * at either end costs O(1) per element, instead of shifting every element after
+	 * the index once per inserted element like {@link AbstractList#addAll(int, Collection)}.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean addAll(int index, Collection<? extends E> from) {
+		checkIndex(index, size + 1);
+		if(from.isEmpty())
+			return false;
+
+		if(index == 0) {
+			Object[] added = from.toArray();
+			for(int i = added.length - 1; i >= 0; --i)
+				addFirst((E) added[i]);
+		} else if(index == size) {
+			from.forEach(this::addLast);
+		} else {
+			return super.addAll(index, from);
+		}
+		return true;
+	}
+
+	/**
+	 * Inserts {@code element} at index {@code 0} in O(1).
+	 * @return the evicted last element if this list was full, otherwise {@code null}
+	 */
+	public @Nullable E addFirst(E element) {
+		if(capacity == 0)
+			return element;
+
+		E evicted = isFull() ? removeLast() : null;
+		ensureArraySize(size + 1);
+
+		head = wrap(head - 1);
+		elements[head] = element;
+		++size;
+		++modCount;
+
+		return evicted;
+	}
+
+	/**
+	 * Appends {@code element} to the end in O(1).
+	 * @return the evicted first element if this list was full, otherwise {@code null}
+	 */
+	public @Nullable E addLast(E element) {
+		if(capacity == 0)
+			return element;
+
+		E evicted = isFull() ? removeFirst() : null;
+		ensureArraySize(size + 1);
+
+		elements[slot(size)] = element;
+		++size;
+		++modCount;
+
+		return evicted;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E remove(int index) {
+		checkIndex(index, size);
+		E removed = (E) elements[slot(index)];
+
+		// closes the gap by shifting whichever side is shorter
+		if(index < size / 2) {
+			for(int i = index; i > 0; --i)
+				elements[slot(i)] = elements[slot(i - 1)];
+			elements[head] = null;
+			head = wrap(head + 1);
+		} else {
+			for(int i = index; i < size - 1; ++i)
+				elements[slot(i)] = elements[slot(i + 1)];
+			elements[slot(size - 1)] = null;
+		}
+
+		--size;
+		++modCount;
+		return removed;
+	}
+
+	/** Removes and returns the element at index {@code 0} in O(1). */
+	public E removeFirst() {
+		return remove(0);
+	}
+
+	/** Removes and returns the last element in O(1). */
+	public E removeLast() {
+		return remove(size - 1);
+	}
+
+	@Override
+	protected void removeRange(int fromIndex, int toIndex) {
+		if(fromIndex < 0 || toIndex > size || fromIndex > toIndex)
+			throw new IndexOutOfBoundsException("Range [" + fromIndex + ", " + toIndex + ") out of bounds for length " + size);
+
+		int removed = toIndex - fromIndex;
+		if(removed == 0)
+			return;
+
+		if(fromIndex == 0) {
+			for(int i = 0; i < removed; ++i)
+				elements[slot(i)] = null;
+			head = wrap(head + removed);
+		} else {
+			for(int i = toIndex; i < size; ++i)
+				elements[slot(i - removed)] = elements[slot(i)];
+			for(int i = size - removed; i < size; ++i)
+				elements[slot(i)] = null;
+		}
+
+		size -= removed;
+		++modCount;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(elements, null);
+		head = 0;
+		size = 0;
+		++modCount;
+	}
+
+
+	/** Converts a list index into an index of {@link #elements}. */
+	private int slot(int index) {
+		int slot = head + index;
+		return slot >= elements.length ? slot - elements.length : slot;
+	}
+
+	/** Wraps an index of {@link #elements} that went one step or more out of bounds. */
+	private int wrap(int slot) {
+		return slot < 0 ? slot + elements.length : slot >= elements.length ? slot - elements.length : slot;
+	}
+
+	/** Grows the backing array (never past {@link #capacity}) so it can hold {@code needed} elements. */
+	private void ensureArraySize(int needed) {
+		if(needed <= elements.length)
+			return;
+
+		long grown = Math.max((long) elements.length * 2, MIN_ARRAY_SIZE);
+		reallocate( (int) Math.max(needed, Math.min(grown, capacity)) );
+	}
+
+	/** Copies all elements into a new array of {@code length}, unwrapping them so {@link #head} is {@code 0}. */
+	private void reallocate(int length) {
+		Object[] resized = new Object[length];
+		for(int i = 0; i < size; ++i)
+			resized[i] = elements[slot(i)];
+
+		elements = resized;
+		head = 0;
+	}
+
+	private static void checkIndex(int index, int length) {
+		if(index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+	}
+}
@@ -0,0 +1,239 @@
+package obro1961.chatpatches.util;
+
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.hud.ChatHudLine;
+import net.minecraft.text.HoverEvent;
+import net.minecraft.text.Text;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.function.BiPredicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static obro1961.chatpatches.util.ChatUtils.MSG_NAME_INDEX;
+import static obro1961.chatpatches.util.ChatUtils.OG_MSG_INDEX;
+
+/**
+ * The text of the search field compiled into a reusable plan, so searching only
+ * has to evaluate it against each message instead of parsing the query again.
+ * <padding><br>Any space-separated word shaped like one of these clauses filters the
+ * messages by their {@link ChatUtils.LineData}, before their text is matched at all:
+ * <ul>
+ *     <li>{@code from:<player>} - sent by that player</li>
+ *     <li>{@code before:<time>} and {@code after:<time>} - received before or after a time, which is
+ *     either a duration ago ({@code 30s}, {@code 10m}, {@code 2h}, {@code 1d}), a time today ({@code 13:45}),
+ *     a date ({@code 2023-07-21}) or both ({@code 2023-07-21T13:45})</li>
+ *     <li>{@code world:<name>} - received in a world or server whose name contains it</li>
+ * </ul>
+ * Words that look like a clause but aren't a valid one (like {@code after:soon}) are searched for as text.
+ * Clauses aren't recognized at all in regex mode, where the whole query is the regex, so that's how
+ * to search for text that looks like a clause.
+ * The rest of the query is matched against each message's text, either as a precompiled
+ * regex or as a plain substring. A query with only clauses skips the text entirely.</padding>
+ */
+public class SearchQuery {
+	// the last from:<player> clause's player and UUID, so it isn't looked up again on every keystroke (only used on the client thread)
+	private static @Nullable String fromName = null;
+	private static UUID fromUuid = ChatUtils.NIL_UUID;
+
+	private final String text;
+	private final boolean caseSensitive, modifiers, regex;
+	private final @Nullable Pattern pattern;
+	private final List<String> clauseSources;
+	private final List<BiPredicate<ChatHudLine, ChatUtils.LineData>> clauses;
+
+
+	private SearchQuery(String text, boolean caseSensitive, boolean modifiers, boolean regex, List<String> clauseSources, List<BiPredicate<ChatHudLine, ChatUtils.LineData>> clauses) {
+		this.text = text;
+		this.caseSensitive = caseSensitive;
+		this.modifiers = modifiers;
+		this.regex = regex;
+		this.pattern = regex && !text.isEmpty() ? Pattern.compile(text, caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE) : null;
+		this.clauseSources = clauseSources;
+		this.clauses = clauses;
+	}
+
+	/**
+	 * Compiles the search field's {@code source} with the current search settings.
+	 *
+	 * @throws PatternSyntaxException if {@code regex} is true and the text isn't a valid regex
+	 */
+	public static SearchQuery compile(String source, boolean caseSensitive, boolean modifiers, boolean regex) throws PatternSyntaxException {
+		List<String> words = new ArrayList<>();
+		List<String> clauseSources = new ArrayList<>();
+		List<BiPredicate<ChatHudLine, ChatUtils.LineData>> clauses = new ArrayList<>();
+
+		// splits on single spaces so any others stay in the text
+		for(String word : source.split(" ", -1)) {
+			BiPredicate<ChatHudLine, ChatUtils.LineData> clause = regex ? null : compileClause(word); // a regex is left as it was typed
+
+			if(clause != null) {
+				clauseSources.add(word.toLowerCase(Locale.ROOT));
+				clauses.add(clause);
+			} else {
+				words.add(word);
+			}
+		}
+
+		String text = clauses.isEmpty() ? source : String.join(" ", words).trim(); // only trims the spaces around removed clauses
+		return new SearchQuery(text, caseSensitive, modifiers, regex, clauseSources, clauses);
+	}
+
+
+	/** The part of the query that's matched against the text of messages */
+	public String text() {
+		return text;
+	}
+
+	public boolean hasText() {
+		return !text.isEmpty();
+	}
+
+	/** Returns true if the text should be matched with formatting codes, see {@link StringTextUtils#reorder}. */
+	public boolean modifiers() {
+		return modifiers;
+	}
+
+	public boolean isRegex() {
+		return regex;
+	}
+
+	public boolean hasClauses() {
+		return !clauses.isEmpty();
+	}
+
+	/** Returns true if {@code line}, which has the metadata {@code data}, passes every clause. */
+	public boolean matchesData(ChatHudLine line, ChatUtils.LineData data) {
+		for(BiPredicate<ChatHudLine, ChatUtils.LineData> clause : clauses)
+			if(!clause.test(line, data))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Returns true if {@code content} (from {@link MessageList#stringOf}) matches the text of this query.
+	 * Only a regex reads it as a {@link CharSequence}, otherwise it's matched as a string.
+	 */
+	public boolean matchesText(CharSequence content) {
+		if(pattern != null)
+			return pattern.matcher(content).matches();
+
+		String string = content.toString();
+		return caseSensitive ? string.contains(text) : StringUtils.containsIgnoreCase(string, text);
+	}
+
+	/**
+	 * Returns true if every message matching this query must also match {@code previous},
+	 * so its matches can just be narrowed down. That's the case when neither is a regex,
+	 * they use the same settings, this has every clause {@code previous} has, and this text
+	 * contains the previous text, since any message containing it also contains the previous one.
+	 */
+	public boolean narrows(SearchQuery previous) {
+		if(regex || previous.regex || caseSensitive != previous.caseSensitive || modifiers != previous.modifiers || !clauseSources.containsAll(previous.clauseSources))
+			return false;
+
+		return caseSensitive ? text.contains(previous.text) : StringUtils.containsIgnoreCase(text, previous.text);
+	}
+
+
+	/** Returns the clause {@code word} describes, or {@code null} if it isn't one. */
+	private static @Nullable BiPredicate<ChatHudLine, ChatUtils.LineData> compileClause(String word) {
+		int colon = word.indexOf(':');
+		if(colon < 1 || colon == word.length() - 1)
+			return null;
+
+		String value = word.substring(colon + 1);
+		switch(word.substring(0, colon).toLowerCase(Locale.ROOT)) {
+			case "from" -> {
+				if(!value.equals(fromName)) {
+					fromName = value;
+					fromUuid = ChatUtils.getUuid(MinecraftClient.getInstance(), value);
+				}
+
+				UUID uuid = fromUuid;
+				// lines without a known sender (like most restored ones) are matched by name instead
+				return (line, data) -> !uuid.equals(ChatUtils.NIL_UUID) && !data.sender().equals(ChatUtils.NIL_UUID)
+					? uuid.equals(data.sender())
+					: value.equalsIgnoreCase(senderName(line));
+			}
+			case "before" -> {
+				long time = parseTime(value);
+				return time == -1 ? null : (line, data) -> data.timestamp() != 0 && data.timestamp() < time;
+			}
+			case "after" -> {
+				long time = parseTime(value);
+				return time == -1 ? null : (line, data) -> data.timestamp() != 0 && data.timestamp() >= time;
+			}
+			case "world" -> {
+				return (line, data) -> StringUtils.containsIgnoreCase(data.world().length() > 2 ? data.world().substring(2) : data.world(), value); // without the C_ or S_ prefix
+			}
+			default -> {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the epoch millis {@code time} refers to (see the class description),
+	 * or {@code -1} if it isn't a valid time.
+	 */
+	private static long parseTime(String time) {
+		char unit = time.charAt(time.length() - 1);
+		String amount = time.substring(0, time.length() - 1);
+		if(!amount.isEmpty() && StringUtils.isNumeric(amount)) {
+			long millis = switch(unit) {
+				case 's' -> 1000L;
+				case 'm' -> 60_000L;
+				case 'h' -> 3_600_000L;
+				case 'd' -> 86_400_000L;
+				default -> -1;
+			};
+
+			try {
+				if(millis != -1)
+					return System.currentTimeMillis() - Math.multiplyExact(Long.parseLong(amount), millis);
+			} catch(ArithmeticException | NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		ZoneId zone = ZoneId.systemDefault();
+		try {
+			if(time.indexOf('T') != -1)
+				return LocalDateTime.parse(time).atZone(zone).toInstant().toEpochMilli();
+			else if(time.indexOf(':') != -1)
+				return LocalDate.now(zone).atTime(LocalTime.parse(time)).atZone(zone).toInstant().toEpochMilli();
+			else
+				return LocalDate.parse(time).atStartOfDay(zone).toInstant().toEpochMilli();
+		} catch(DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the name of the player who sent {@code line}, used when either its sender or
+	 * the player's UUID isn't known, or {@code null} if there is none. It's read from the hover
+	 * event of its formatted name, or otherwise from the {@code <name>} prefix of a vanilla
+	 * message with {@link ChatUtils#getVanillaSender(Text)}.
+	 */
+	private static @Nullable String senderName(ChatHudLine line) {
+		List<Text> parts = line.content().getSiblings();
+		Text og = parts.size() > OG_MSG_INDEX ? parts.get(OG_MSG_INDEX) : line.content();
+		List<Text> ogParts = og.getSiblings();
+		HoverEvent nameHover = ogParts.size() > MSG_NAME_INDEX ? ogParts.get(MSG_NAME_INDEX).getStyle().getHoverEvent() : null;
+		HoverEvent.EntityContent player = nameHover != null ? nameHover.getValue(HoverEvent.Action.SHOW_ENTITY) : null;
+
+		return player != null && player.name != null ? player.name.getString() : ChatUtils.getVanillaSender(og);
+	}
+}
@@ -0,0 +1,44 @@
+package obro1961.chatpatches.util;
+
+import net.minecraft.client.gui.hud.ChatHudLine;
+import obro1961.chatpatches.mixin.gui.ChatScreenMixin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages a chat search matched, newest first, along with everything
+ * that decided which ones matched. {@link ChatScreenMixin} keeps the last one so
+ * a query that only extends the previous one can narrow these matches down,
+ * instead of searching every message and wrapping every match again.
+ *
+ * @param query the query that was searched for, with the settings it was compiled with
+ * @param width the chat width the matches were wrapped to
+ * @param version the {@link MessageList#version()} of the messages when they were searched
+ */
+public record SearchResult(SearchQuery query, int width, int version, List<Match> matches) {
+	/**
+	 * A matched message, and the visible lines it was wrapped into (newest
+	 * first, like {@link net.minecraft.client.gui.hud.ChatHud#visibleMessages}).
+	 */
+	public record Match(ChatHudLine line, List<ChatHudLine.Visible> visibles) {}
+
+
+	/**
+	 * Returns true if every message matching {@code query} must be one of these
+	 * matches (see {@link SearchQuery#narrows(SearchQuery)}), so they can just be narrowed
+	 * down. The messages and chat width also can't have changed.
+	 */
+	public boolean narrows(SearchQuery query, int width, int version) {
+		return width == this.width && version == this.version && query.narrows(this.query);
+	}
+
+	/** Returns the visible lines of every match, in the order they're shown in the chat. */
+	public List<ChatHudLine.Visible> visibles() {
+		List<ChatHudLine.Visible> visibles = new ArrayList<>(matches.size());
+		for(Match match : matches)
+			visibles.addAll(match.visibles());
+
+		return visibles;
+	}
+}
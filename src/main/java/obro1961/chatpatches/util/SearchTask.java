@@ -0,0 +1,231 @@
+package obro1961.chatpatches.util;
+
+import net.minecraft.client.gui.hud.ChatHudLine;
+import obro1961.chatpatches.mixin.gui.ChatScreenMixin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static obro1961.chatpatches.ChatPatches.LOGGER;
+
+/**
+ * A chat search running on a background thread, so searching a large
+ * chat (or with a slow regex) doesn't hold up rendering. Started by
+ * {@link ChatScreenMixin} for any search that can't just narrow down the
+ * previous results, which then applies its {@link #outcome()} on the client
+ * thread once it's {@link #isDone()}.
+ * <padding><br>It searches a snapshot of the lines taken when it's started,
+ * along with their already cached {@link MessageList.Strings} and (if the query
+ * has any clauses) {@link ChatUtils.LineData}, since the {@link MessageList} itself
+ * is only safe to use from the client thread. Anything missing is created on its own
+ * thread instead. A plain search of every line also builds the {@link TrigramIndex}
+ * the {@link MessageList} didn't have yet, which is used by later searches once it's
+ * cached along with the strings it created by {@link #cacheResults(MessageList)}.</padding>
+ * <padding><br>Starting a newer search should {@link #cancel()} the last one,
+ * and every search is stopped after {@link #TIME_LIMIT_MILLIS}, which mostly
+ * happens with catastrophically backtracking regexes.</padding>
+ */
+public class SearchTask {
+	public static final long TIME_LIMIT_MILLIS = 2000;
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(task -> {
+		Thread thread = new Thread(task, "Chat Patches Search");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final SearchQuery query;
+	private final int version;
+	private final ChatHudLine[] lines;
+	private final MessageList.Strings[] strings; // filled in by the search if the query has text
+	private final ChatUtils.LineData[] data; // null if the query has no clauses
+	private final boolean buildIndex;
+	private @Nullable TrigramIndex index = null; // built by the search if buildIndex is true
+	private long deadline;
+	private volatile boolean cancelled = false;
+	private volatile @Nullable Outcome outcome = null;
+
+
+	/**
+	 * The lines that matched (newest first), or an empty list and
+	 * {@code stopped = true} if the search took too long or failed.
+	 */
+	public record Outcome(List<ChatHudLine> matches, boolean stopped) {}
+
+	/** Thrown from inside a regex match to stop it, see {@link GuardedString}. */
+	private static class StoppedException extends RuntimeException {
+		private StoppedException() {
+			super(null, null, false, false);
+		}
+	}
+
+
+	private SearchTask(SearchQuery query, @Nullable List<ChatHudLine> candidates, MessageList messages) {
+		this.query = query;
+		this.version = messages.version();
+		this.lines = (candidates != null ? candidates : messages).toArray(ChatHudLine[]::new);
+		this.strings = new MessageList.Strings[this.lines.length];
+		this.data = query.hasClauses() ? new ChatUtils.LineData[this.lines.length] : null;
+		this.buildIndex = candidates == null && query.hasText() && !query.isRegex() && !messages.hasSearchIndex(query.modifiers());
+
+		for(int i = 0; i < this.lines.length; ++i) {
+			if(query.hasText())
+				strings[i] = messages.cachedStrings(this.lines[i]);
+			if(data != null)
+				data[i] = messages.cachedData(this.lines[i]); // attached when the line was added, so it's just looked up
+		}
+	}
+
+	/**
+	 * Snapshots {@code candidates} (which should be newest first), or every line of
+	 * {@code messages} if it's {@code null}, and starts searching them for {@code query}
+	 * in the background. Must be called on the client thread.
+	 */
+	public static SearchTask start(SearchQuery query, @Nullable List<ChatHudLine> candidates, MessageList messages) {
+		SearchTask task = new SearchTask(query, candidates, messages);
+		EXECUTOR.execute(task::run);
+		return task;
+	}
+
+
+	public SearchQuery query() {
+		return query;
+	}
+
+	/** The {@link MessageList#version()} of the lines when they were snapshot */
+	public int version() {
+		return version;
+	}
+
+	public boolean isDone() {
+		return outcome != null;
+	}
+
+	/** Returns the outcome of the search, or {@code null} if it isn't {@link #isDone()} yet. */
+	public @Nullable Outcome outcome() {
+		return outcome;
+	}
+
+	/** Stops the search as soon as possible; it will never be done. */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Caches the strings this search created and the index it built in {@code messages},
+	 * unless its lines changed since then so some of them might be gone.
+	 * Must be called on the client thread once it's done.
+	 */
+	public void cacheResults(MessageList messages) {
+		if(!isDone() || messages.version() != version)
+			return;
+
+		for(int i = 0; i < lines.length; ++i)
+			if(strings[i] != null)
+				messages.cacheStrings(lines[i], strings[i]);
+
+		if(index != null && !messages.hasSearchIndex(query.modifiers()))
+			messages.setSearchIndex(index, query.modifiers());
+	}
+
+
+	private void run() {
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIME_LIMIT_MILLIS);
+		List<ChatHudLine> matches = new ArrayList<>();
+
+		try {
+			if(buildIndex && !buildIndex())
+				return;
+
+			for(int i = 0; i < lines.length; ++i) {
+				if(cancelled)
+					return;
+				if(System.nanoTime() - deadline > 0)
+					throw new StoppedException();
+
+				if(data != null && data[i] == null)
+					data[i] = ChatUtils.LineData.of(lines[i].content(), "");
+				if(data != null && !query.matchesData(lines[i], data[i]))
+					continue;
+				if(query.hasText()) {
+					if(strings[i] == null)
+						strings[i] = MessageList.Strings.of(lines[i]);
+
+					String content = strings[i].get(query.modifiers());
+					if(!query.matchesText( query.isRegex() ? new GuardedString(content) : content ))
+						continue;
+				}
+
+				matches.add(lines[i]);
+			}
+
+			outcome = new Outcome(matches, false);
+		} catch(StoppedException e) {
+			if(!cancelled)
+				LOGGER.warn("[SearchTask.run] Stopped searching for '{}' after {}ms, it was taking too long", query.text(), TIME_LIMIT_MILLIS);
+			outcome = new Outcome(List.of(), true);
+		} catch(RuntimeException e) {
+			LOGGER.error("[SearchTask.run] An error occurred while searching for '{}':", query.text(), e);
+			outcome = new Outcome(List.of(), true);
+		}
+	}
+
+	/**
+	 * Builds the {@link TrigramIndex} of every line, oldest first, creating any strings that weren't
+	 * cached. Returns false if it was cancelled first. The {@link #outcome} is only set after this,
+	 * so {@link #index} is visible to the client thread once the search {@link #isDone()}.
+	 */
+	private boolean buildIndex() {
+		TrigramIndex built = new TrigramIndex();
+		for(int i = lines.length - 1; i >= 0; --i) {
+			if(cancelled)
+				return false;
+
+			if(strings[i] == null)
+				strings[i] = MessageList.Strings.of(lines[i]);
+			built.add(lines[i], strings[i].get(query.modifiers()));
+		}
+
+		index = built;
+		return true;
+	}
+
+	/**
+	 * A string that stops the search when it's read after it was cancelled or ran out
+	 * of time, since a regex can backtrack indefinitely within a single message.
+	 */
+	private class GuardedString implements CharSequence {
+		private final String string;
+		private int reads = 0;
+
+		private GuardedString(String string) {
+			this.string = string;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if((++reads & 0xFFF) == 0 && (cancelled || System.nanoTime() - deadline > 0)) // only checks every 4096 reads
+				throw new StoppedException();
+
+			return string.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return string.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return string.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return string;
+		}
+	}
+}
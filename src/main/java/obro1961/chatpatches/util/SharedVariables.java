@@ -7,4 +7,6 @@ public class SharedVariables {
 
     /** Contains the sender and timestamp data of the last received chat message. */
     public static ChatUtils.MessageData lastMsg = ChatUtils.NIL_MSG_DATA;
+    /** The {@link MiscUtils#currentWorldName} of the world the client last joined. */
+    public static String currentWorld = "";
 }
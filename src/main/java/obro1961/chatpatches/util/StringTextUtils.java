@@ -3,11 +3,14 @@ package obro1961.chatpatches.util;
 import com.google.common.collect.Lists;
 import net.minecraft.text.MutableText;
 import net.minecraft.text.OrderedText;
+import net.minecraft.text.StringVisitable;
 import net.minecraft.text.Style;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
+import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +35,45 @@ public class StringTextUtils {
 		return str.replaceAll("\\$", variable).replaceAll("\\\\n", "\n");
 	}
 
+	/**
+	 * Returns the part of {@code str} after the first {@code c}, without any leading
+	 * whitespace (like {@code \s}). Returns {@code null} if there's no {@code c}
+	 * or nothing follows it. Used instead of {@code split} and {@code replaceAll}
+	 * to separate playernames from messages without any regexes.
+	 */
+	public static @Nullable String afterFirst(String str, char c) {
+		int i = str.indexOf(c);
+		if(i == -1 || i == str.length() - 1)
+			return null;
+
+		int start = i + 1;
+		while(start < str.length() && isRegexWhitespace(str.charAt(start)))
+			++start;
+
+		return str.substring(start);
+	}
+
+	/**
+	 * Folds the case of every character in {@code str} the same way {@link String#equalsIgnoreCase(String)}
+	 * compares them, so two strings are equal ignoring case exactly when their folded forms are equal.
+	 * Unlike {@link String#toLowerCase()}, never changes the length of the string.
+	 */
+	public static String foldCase(String str) {
+		StringBuilder folded = new StringBuilder(str.length());
+		str.codePoints().forEach(c -> folded.appendCodePoint( Character.toLowerCase(Character.toUpperCase(c)) ));
+		return folded.toString();
+	}
+
+	/** Returns true if any part of {@code text} contains {@code c}, without flattening it into one string. */
+	public static boolean contains(StringVisitable text, char c) {
+		return text.visit(part -> part.indexOf(c) != -1 ? StringVisitable.TERMINATE_VISIT : Optional.empty()).isPresent();
+	}
+
+	/** The characters matched by {@code \s} in a regex */
+	private static boolean isRegexWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
 	/**
 	 * Returns a list of web URL links captured from {@code str}.
 	 * Returns an empty list if none are found.
@@ -54,65 +96,110 @@ public class StringTextUtils {
 	 * Doesn't support hex colors.
 	 */
 	public static MutableText toText(String unformatted) {
-		return Text.literal(
-			unformatted
-				.replaceAll("(?im)(?<!\\\\)&([0-9a-fk-or])", "§$1")
-				.replaceAll("(?im)(\\\\)+&([0-9a-fk-or])", "&$2")
-		);
+		return Text.literal( toCodes(unformatted) );
+	}
+
+	/** Converts the {@code &} formatting codes in {@code unformatted} into {@code §} codes, as used by {@link #toText(String)}. */
+	public static String toCodes(String unformatted) {
+		return unformatted
+			.replaceAll("(?im)(?<!\\\\)&([0-9a-fk-or])", "§$1")
+			.replaceAll("(?im)(\\\\)+&([0-9a-fk-or])", "&$2");
 	}
 
 	/**
-	 * Converts an {@link OrderedText} into a {@link String} with {@code &<?>}
-	 * codes. Strips any complex style data, including hover events, fonts,
-	 * insertion text, etc. If {@code includeStyleData} is true, then the
-	 * returned string will not include any formatting codes.
+	 * Converts an {@link OrderedText} into a {@link String}, with {@code &<?>}
+	 * codes if {@code includeStyleData} is true. Strips any complex style data,
+	 * including hover events, fonts, insertion text, etc.
 	 *
 	 * @apiNote Intended for use with general and regex comparisons, and not
-	 * for actually obtaining a complete Text object.
-	 * @implNote Visits the OrderedText by each character, and accounts for
-	 * Formatting style data by adding {@code &?} codes when the style changes.
+	 * for actually obtaining a complete Text object. Prefer {@link MessageList#stringOf}
+	 * for chat messages, which only does this once per message.
+	 * @see #reorder(OrderedText, StringBuilder, StringBuilder)
 	 */
 	public static String reorder(OrderedText renderable, boolean includeStyleData) {
 		StringBuilder reordered = new StringBuilder();
+		if(includeStyleData)
+			reorder(renderable, null, reordered);
+		else
+			reorder(renderable, reordered, null);
+
+		return reordered.toString();
+	}
+
+	/**
+	 * Appends the text of {@code renderable} to {@code plain}, and the text with
+	 * {@code &<?>} codes to {@code coded}, in the same single pass. Either can be
+	 * {@code null} to skip it.
+	 *
+	 * @implNote
+	 * <ol>
+	 *     <li>Visits the OrderedText by each character, appending each code point directly.</li>
+	 *     <li>Appends {@code &?} codes to {@code coded} when the style changes, compared by identity
+	 *     first since consecutive characters almost always share the same {@link Style} object.</li>
+	 *     <li>Strips any redundant reset codes from the start and end of {@code coded}.</li>
+	 * </ol>
+	 */
+	public static void reorder(OrderedText renderable, @Nullable StringBuilder plain, @Nullable StringBuilder coded) {
 		Style[] last = {null}; // ensures that the first equality check returns false
+		int codedStart = coded != null ? coded.length() : 0;
 
 		renderable.accept((index, style, codepoint) -> {
+			if(coded != null) {
+				// if style is different from last, add any formatting codes
+				if( style != last[0] && !style.equals(last[0]) )
+					appendFormattingCodes(coded, last[0] = style);
 
-			// if style is different from last, add any formatting codes
-			if( !style.equals(last[0]) && includeStyleData )
-				reordered.append( getFormattingCodes(last[0] = style) );
-
-			reordered.append( Character.toChars(codepoint) );
+				coded.appendCodePoint(codepoint);
+			}
+			if(plain != null)
+				plain.appendCodePoint(codepoint);
 
 			return true;
 		});
 
-		// trusting this for now...
-		return delAll( reordered.toString(), "^(&r)+", "(&r)+$" ); // strips any redundant reset codes
+		if(coded != null) {
+			int end = coded.length();
+			while(end - 2 >= codedStart && coded.charAt(end - 2) == '&' && coded.charAt(end - 1) == 'r')
+				end -= 2;
+			coded.setLength(end);
+
+			int start = codedStart;
+			while(start + 1 < coded.length() && coded.charAt(start) == '&' && coded.charAt(start + 1) == 'r')
+				start += 2;
+			coded.delete(codedStart, start);
+		}
 	}
 
 	/**
 	 * Takes a {@link Style} and returns a string of {@code &<?>}
 	 * codes based upon the style's formatting data.
 	 */
-	@SuppressWarnings("StringBufferReplaceableByString") // StringBuilder is faster and String concatenation looks ugly
 	public static String getFormattingCodes(Style style) {
-		StringBuilder codes = new StringBuilder(18);
+		return appendFormattingCodes(new StringBuilder(18), style).toString();
+	}
+
+	/** Appends the {@code &<?>} codes of {@code style} to {@code codes}, see {@link #getFormattingCodes(Style)}. */
+	public static StringBuilder appendFormattingCodes(StringBuilder codes, Style style) {
 		Formatting color;
 
-		codes.append(
-			style.getColor() != null
-				? (color = Formatting.byName(style.getColor().getName())) != null
-					? "&" + color.getCode()
-					: "&" + style.getColor().getHexCode()
-				: "&r"
-		);
-		codes.append( style.isBold() ? "&l" : "" );
-		codes.append( style.isItalic() ? "&o" : "" );
-		codes.append( style.isUnderlined() ? "&n" : "" );
-		codes.append( style.isStrikethrough() ? "&m" : "" );
-		codes.append( style.isObfuscated() ? "&k" : "" );
-
-		return codes.toString();
+		if(style.getColor() == null)
+			codes.append("&r");
+		else if((color = Formatting.byName(style.getColor().getName())) != null)
+			codes.append('&').append(color.getCode());
+		else
+			codes.append('&').append(style.getColor().getHexCode());
+
+		if(style.isBold())
+			codes.append("&l");
+		if(style.isItalic())
+			codes.append("&o");
+		if(style.isUnderlined())
+			codes.append("&n");
+		if(style.isStrikethrough())
+			codes.append("&m");
+		if(style.isObfuscated())
+			codes.append("&k");
+
+		return codes;
 	}
 }
@@ -0,0 +1,83 @@
+package obro1961.chatpatches.util;
+
+import net.minecraft.text.MutableText;
+import net.minecraft.text.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A format string with {@code $} placeholders, compiled once so filling
+ * it in is only a string concatenation. Compiling does the same thing as
+ * {@link StringTextUtils#fillVars(String, String)} and then
+ * {@link StringTextUtils#toText(String)} to the text around the placeholders,
+ * so those regexes run once instead of for every formatted message.
+ * <padding><br>Unlike before, the filled in value is always inserted as-is,
+ * so a world name containing {@code &} codes or {@code \n} isn't formatted.</padding>
+ */
+public class TextTemplate {
+	private final String source;
+	private final boolean formatted;
+	private final String[] parts; // the text between placeholders, already converted
+	private final int partsLength;
+
+
+	private TextTemplate(String source, boolean formatted) {
+		this.source = source;
+		this.formatted = formatted;
+
+		List<String> split = new ArrayList<>();
+		int start = 0;
+		for(int i = source.indexOf('$'); i != -1; i = source.indexOf('$', start = i + 1))
+			split.add( convert(source.substring(start, i)) );
+		split.add( convert(source.substring(start)) );
+
+		this.parts = split.toArray(String[]::new);
+		this.partsLength = split.stream().mapToInt(String::length).sum();
+	}
+
+	/**
+	 * Compiles {@code source}. If {@code formatted} is true, {@code &} formatting
+	 * codes are converted like {@link StringTextUtils#toText(String)} does,
+	 * otherwise only {@code \n}s are.
+	 */
+	public static TextTemplate compile(String source, boolean formatted) {
+		return new TextTemplate(source, formatted);
+	}
+
+	/** Returns {@code previous} if it was compiled from the same {@code source}, otherwise compiles it again. */
+	public static TextTemplate recompile(TextTemplate previous, String source, boolean formatted) {
+		return previous != null && previous.source.equals(source) && previous.formatted == formatted
+			? previous
+			: compile(source, formatted);
+	}
+
+
+	/** Returns the template with every placeholder replaced by {@code value}. */
+	public String format(String value) {
+		if(parts.length == 1)
+			return parts[0];
+
+		StringBuilder formatted = new StringBuilder(partsLength + value.length() * (parts.length - 1));
+		formatted.append(parts[0]);
+		for(int i = 1; i < parts.length; ++i)
+			formatted.append(value).append(parts[i]);
+
+		return formatted.toString();
+	}
+
+	/** Returns a new {@link Text} of {@link #format(String)}, equivalent to {@code toText(fillVars(source, value))}. */
+	public MutableText text(String value) {
+		return Text.literal( format(value) );
+	}
+
+	public String source() {
+		return source;
+	}
+
+
+	private String convert(String part) {
+		part = part.replace("\\n", "\n");
+		return formatted ? StringTextUtils.toCodes(part) : part;
+	}
+}
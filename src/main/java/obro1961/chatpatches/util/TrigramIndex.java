@@ -0,0 +1,182 @@
+package obro1961.chatpatches.util;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.client.gui.hud.ChatHudLine;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An inverted index from every trigram (three consecutive characters) of the
+ * chat's messages to the messages containing it, so a substring search only has
+ * to check the messages containing every trigram of the query instead of all of them.
+ * Trigrams are case-folded, so the candidates of a case-sensitive search are a superset
+ * of its matches as well; either way every candidate still has to be checked.
+ * <padding><br>Each line gets an id that's ordered like the chat (oldest first), so every
+ * posting list is sorted. Ids are spaced {@link #ID_GAP} apart, so a line added as the
+ * oldest one or between two others still gets an id in order, and one that replaces
+ * another takes over its id. Removed or replaced lines are only forgotten, not removed
+ * from the posting lists, until {@link #isStale()} says the index should be rebuilt.</padding>
+ * <padding><br>Every line is indexed with the string it's searched as, so one can be built on a
+ * {@link SearchTask}'s thread from the strings it has and then kept up to date by {@link MessageList}.</padding>
+ *
+ * @see MessageList#searchCandidates(String, boolean)
+ */
+public class TrigramIndex {
+	public static final int MIN_QUERY_LENGTH = 3;
+	private static final long ID_GAP = 1L << 24; // room for 24 lines inserted between the same two
+
+	private final Long2ObjectOpenHashMap<LongArrayList> postings = new Long2ObjectOpenHashMap<>();
+	private final Long2ObjectOpenHashMap<ChatHudLine> lines = new Long2ObjectOpenHashMap<>();
+	private final Map<ChatHudLine, Long> ids = new IdentityHashMap<>();
+	private long newestId = -ID_GAP, oldestId = ID_GAP;
+	private int removed = 0;
+
+
+	/** Indexes {@code line}, which is searched as {@code indexed}, as the newest line. */
+	public void add(ChatHudLine line, String indexed) {
+		insert(line, indexed, newestId + ID_GAP);
+	}
+
+	/** Indexes {@code line}, which is searched as {@code indexed}, as the oldest line. */
+	public void addOldest(ChatHudLine line, String indexed) {
+		insert(line, indexed, oldestId - ID_GAP);
+	}
+
+	/**
+	 * Indexes {@code line} between the indexed lines {@code older} and {@code newer}.
+	 * Returns false if it couldn't, because either isn't indexed or there's no id left
+	 * between theirs, so the index should be rebuilt.
+	 */
+	public boolean addBetween(ChatHudLine line, String indexed, ChatHudLine older, ChatHudLine newer) {
+		Long olderId = ids.get(older), newerId = ids.get(newer);
+		if(olderId == null || newerId == null || newerId - olderId < 2)
+			return false;
+
+		insert(line, indexed, olderId + (newerId - olderId) / 2);
+		return true;
+	}
+
+	/**
+	 * Indexes {@code line} in place of {@code old}, with its id. Returns false
+	 * if it couldn't because {@code old} isn't indexed, so the index should be rebuilt.
+	 */
+	public boolean replace(ChatHudLine old, ChatHudLine line, String indexed) {
+		Long id = ids.remove(old);
+		if(id == null)
+			return false;
+
+		++removed; // the trigrams only old had are left behind
+		insert(line, indexed, id);
+		return true;
+	}
+
+	public void remove(ChatHudLine line) {
+		Long id = ids.remove(line);
+		if(id != null) {
+			lines.remove(id.longValue());
+			++removed;
+		}
+	}
+
+	/** Returns true once more lines were removed than are left, so the dead ids should be cleaned up by rebuilding it. */
+	public boolean isStale() {
+		return removed > 256 && removed > lines.size();
+	}
+
+	/**
+	 * Returns every line containing all the trigrams of {@code query}, newest first,
+	 * or {@code null} if it's shorter than {@link #MIN_QUERY_LENGTH} so it has no trigrams.
+	 *
+	 * @implNote
+	 * <ol>
+	 *     <li>Looks up the posting list of each distinct trigram, stopping if one has none.</li>
+	 *     <li>Intersects them from the shortest one up, so the candidates only shrink.</li>
+	 *     <li>Returns the lines of the candidates that weren't removed, in reverse.</li>
+	 * </ol>
+	 */
+	public @Nullable List<ChatHudLine> candidates(String query) {
+		if(query.length() < MIN_QUERY_LENGTH)
+			return null;
+
+		LongOpenHashSet trigrams = new LongOpenHashSet();
+		for(int i = 0; i + MIN_QUERY_LENGTH <= query.length(); ++i)
+			trigrams.add(trigram(query, i));
+
+		List<LongArrayList> found = new ArrayList<>(trigrams.size());
+		for(long trigram : trigrams) {
+			LongArrayList posting = postings.get(trigram);
+			if(posting == null)
+				return List.of();
+			found.add(posting);
+		}
+		found.sort(Comparator.comparingInt(LongArrayList::size));
+
+		LongArrayList candidates = new LongArrayList(found.get(0));
+		for(int i = 1; i < found.size() && !candidates.isEmpty(); ++i)
+			retainAll(candidates, found.get(i));
+
+		List<ChatHudLine> matched = new ArrayList<>(candidates.size());
+		for(int i = candidates.size() - 1; i >= 0; --i) {
+			ChatHudLine line = lines.get(candidates.getLong(i));
+			if(line != null)
+				matched.add(line);
+		}
+		return matched;
+	}
+
+
+	/**
+	 * Indexes {@code line} under {@code id} with the trigrams of {@code indexed}. Every trigram is appended to its posting list
+	 * if the id is the newest one there, which it is for every line added as the newest,
+	 * and otherwise inserted where it belongs.
+	 */
+	private void insert(ChatHudLine line, String indexed, long id) {
+		lines.put(id, line);
+		ids.put(line, id);
+		newestId = Math.max(newestId, id);
+		oldestId = Math.min(oldestId, id);
+
+		for(int i = 0; i + MIN_QUERY_LENGTH <= indexed.length(); ++i) {
+			LongArrayList posting = postings.computeIfAbsent(trigram(indexed, i), k -> new LongArrayList(4));
+			int size = posting.size();
+			if(size == 0 || posting.getLong(size - 1) < id) {
+				posting.add(id);
+			} else {
+				int at = LongArrays.binarySearch(posting.elements(), 0, size, id);
+				if(at < 0) // otherwise it's a repeated trigram
+					posting.add(-at - 1, id);
+			}
+		}
+	}
+
+	/** Case-folds a character the same way {@link String#equalsIgnoreCase(String)} compares them. */
+	private static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/** Packs the case-folded trigram starting at {@code i} into a long. */
+	private static long trigram(String s, int i) {
+		return ((long) fold(s.charAt(i)) << 32) | ((long) fold(s.charAt(i + 1)) << 16) | fold(s.charAt(i + 2));
+	}
+
+	/** Removes every id from {@code candidates} that's not in {@code other}, in one pass since both are sorted. */
+	private static void retainAll(LongArrayList candidates, LongArrayList other) {
+		int kept = 0, j = 0;
+		for(int i = 0; i < candidates.size(); ++i) {
+			long id = candidates.getLong(i);
+			while(j < other.size() && other.getLong(j) < id)
+				++j;
+			if(j < other.size() && other.getLong(j) == id)
+				candidates.set(kept++, id);
+		}
+		candidates.size(kept);
+	}
+}